@@ -0,0 +1,434 @@
+/*
+ *  PublishedApiDoclet - a filter proxy for any javadoc doclet
+ *
+ *  Copyright (C) 2010  Anselm Kruis <a.kruis@science-computing.de>
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package de.kruis.padoclet;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sun.javadoc.DocErrorReporter;
+import com.sun.javadoc.Doclet;
+import com.sun.javadoc.LanguageVersion;
+import com.sun.javadoc.RootDoc;
+import com.sun.javadoc.SourcePosition;
+
+/**
+ * A delegate / formating doclet.
+ *
+ * <p>
+ * The static doclet methods of the delegate doclet class are looked up and
+ * checked once, when the instance is created. A method, that fails the
+ * checks, is reported, when it gets invoked.
+ * </p>
+ * <p>
+ * The system property {@link FilterDocletBase#PAD_DELEGATE_DOCLET_SYSTEM_PROPERTY}
+ * names one or more delegate doclets. All of them format the same filtered
+ * root doc, one after the other or concurrently. Each delegate gets the 
+ * options, that it accepts.
+ * </p>
+ *
+ * @author kruis
+ */
+final class DelegateDoclet {
+
+	/**
+	 * the default delegate doclet
+	 */
+	private static final String DEFAULT_DELEGATE = "com.sun.tools.doclets.standard.Standard";
+
+	/**
+	 * the delimiters of the delegate doclet names
+	 */
+	private static final String DELEGATE_DELIMITER = " \t\n\r\f,";
+
+	/**
+	 * The delegates for a value of the system property.
+	 */
+	private static final class Delegates {
+		final String property;
+		final ClassLoader classLoader;
+		final List<DelegateDoclet> list;
+
+		Delegates(String property, ClassLoader classLoader, List<DelegateDoclet> list) {
+			this.property = property;
+			this.classLoader = classLoader;
+			this.list = list;
+		}
+	}
+
+	/**
+	 * holds the delegates used last.
+	 */
+	private static volatile Delegates delegates;
+
+	/**
+	 * the name of the delegate doclet class
+	 */
+	private final String className;
+
+	/**
+	 * maps the method names to the checked methods
+	 */
+	private final Map<String, Method> methods = new HashMap<String, Method>();
+
+	/**
+	 * maps the method names to the reasons, why a method is unusable
+	 */
+	private final Map<String, String> problems = new HashMap<String, String>();
+
+	/**
+	 * maps option names to the lengths reported by the delegate doclet.
+	 */
+	private final ConcurrentHashMap<String, Integer> optionLengths = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * Load a delegate doclet class and look up its doclet methods.
+	 *
+	 * @param className the name of the class
+	 * @param classLoader the class loader used to load the class
+	 * @throws ClassNotFoundException if the class can't be loaded
+	 */
+	private DelegateDoclet(String className, ClassLoader classLoader) throws ClassNotFoundException {
+		this.className = className;
+		Class<?> delegateDoclet = classLoader.loadClass(className);
+		Method[] docletmethods = Doclet.class.getMethods();
+		for(int i=0;i<docletmethods.length;i++) {
+			int modifiers = docletmethods[i].getModifiers();
+			if (! (Modifier.isStatic(modifiers) && Modifier.isPublic(modifiers)))
+				continue;
+			String name = docletmethods[i].getName();
+			Method m;
+			try {
+				m = delegateDoclet.getMethod(name, docletmethods[i].getParameterTypes());
+			} catch (NoSuchMethodException e) {
+				problems.put(name, e.toString());
+				continue;
+			}
+			modifiers = m.getModifiers();
+			if (! (Modifier.isStatic(modifiers) && Modifier.isPublic(modifiers))) {
+				problems.put(name, "Method is not public static: "+m.toString());
+			} else if (! docletmethods[i].getReturnType().isAssignableFrom(m.getReturnType())) {
+				problems.put(name, "Method has incompatible return type: "+m.toString());
+			} else {
+				try {
+					// skip the access check on each call
+					m.setAccessible(true);
+				} catch (SecurityException e) {
+					// ignore
+				}
+				methods.put(name, m);
+			}
+		}
+	}
+
+	/**
+	 * Get the delegate doclets.
+	 *
+	 * The delegates are determinated on each call, using the current value
+	 * of the system property {@link FilterDocletBase#PAD_DELEGATE_DOCLET_SYSTEM_PROPERTY}
+	 * and the context class loader of the current thread. Therefore each
+	 * javadoc run gets the delegate doclets of its own configuration. The
+	 * delegates are reused, as long as both are unchanged.
+	 *
+	 * @return an unmodifiable, non empty list of the delegate doclets
+	 * @throws RuntimeException if a delegate doclet class can't be loaded
+	 * @throws IllegalArgumentException if a delegate doclet class is listed twice.
+	 * Doclets usually keep their configuration in static fields, therefore
+	 * they can't run twice on the same root doc.
+	 */
+	static List<DelegateDoclet> getDelegates() {
+		String property = System.getProperty(FilterDocletBase.PAD_DELEGATE_DOCLET_SYSTEM_PROPERTY);
+		if (property == null)
+			property = "";
+		ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		Delegates d = delegates;
+		if (d == null || d.classLoader != classLoader || ! d.property.equals(property)) {
+			List<DelegateDoclet> list = new ArrayList<DelegateDoclet>();
+			StringTokenizer tokenizer = new StringTokenizer(property, DELEGATE_DELIMITER);
+			try {
+				while (tokenizer.hasMoreTokens()) {
+					String className = tokenizer.nextToken();
+					for (int i = 0; i < list.size(); i++) {
+						if (list.get(i).className.equals(className))
+							throw new IllegalArgumentException("The delegate doclet "+className
+									+" is listed twice in the system property "
+									+FilterDocletBase.PAD_DELEGATE_DOCLET_SYSTEM_PROPERTY);
+					}
+					list.add(new DelegateDoclet(className, classLoader));
+				}
+				if (list.size() == 0)
+					list.add(new DelegateDoclet(DEFAULT_DELEGATE, classLoader));
+			} catch (ClassNotFoundException e) {
+				throw new RuntimeException(e);
+			}
+			d = new Delegates(property, classLoader, Collections.unmodifiableList(list));
+			delegates = d;
+		}
+		return d.list;
+	}
+
+	/**
+	 * @return the name of the delegate doclet class
+	 */
+	String getClassName() {
+		return className;
+	}
+
+	/**
+	 * Invoke a static method on the delegate doclet.
+	 *
+	 * @param name name of the method to be invoked. The name of one of
+	 * the static methods of {@link Doclet}.
+	 * @param par an array, that contains the method parameters
+	 * @return the return value of the invoked method.
+	 */
+	private Object invoke(String name, Object[] par) {
+		try{
+			Method m = methods.get(name);
+			if (m == null) {
+				String problem = problems.get(name);
+				throw new NoSuchMethodException(problem != null ? problem : name);
+			}
+			try {
+				return m.invoke(null,par);
+			}catch(InvocationTargetException e) {
+				Throwable targetException = e.getTargetException();
+				if (targetException instanceof Exception) {
+					throw (Exception) targetException;
+				} else {
+					throw new RuntimeException(targetException);
+				}
+			}
+		} catch(RuntimeException e) {
+			throw e;
+		} catch(Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Call the <code>optionLength</code> method of the delegate doclet.
+	 *
+	 * The result is remembered, because the delegate is asked again for
+	 * the options, that it accepts. The option <code>-help</code> is not
+	 * remembered, because the delegate prints its help on each call.
+	 *
+	 * @param option the name of the option
+	 * @return the length of the option or 0, if the option is unknown
+	 * @see Doclet#optionLength(String)
+	 */
+	int optionLength(String option) {
+		Integer length = optionLengths.get(option);
+		if (length == null) {
+			length = (Integer) invoke("optionLength", new Object[] { option });
+			if (! "-help".equals(option))
+				optionLengths.put(option, length);
+		}
+		return length.intValue();
+	}
+
+	/**
+	 * Call the <code>validOptions</code> method of the delegate doclet.
+	 *
+	 * @param options the options for this delegate
+	 * @param reporter the error reporter
+	 * @return <code>true</code>, if the options are valid
+	 * @see Doclet#validOptions(String[][], DocErrorReporter)
+	 */
+	boolean validOptions(String[][] options, DocErrorReporter reporter) {
+		return ((Boolean) invoke("validOptions", new Object[] { options, reporter })).booleanValue();
+	}
+
+	/**
+	 * Call the <code>languageVersion</code> method of the delegate doclet.
+	 *
+	 * @return the language version supported by the delegate doclet.
+	 * @see Doclet#languageVersion()
+	 */
+	LanguageVersion languageVersion() {
+		return (LanguageVersion) invoke("languageVersion", null);
+	}
+
+	/**
+	 * Call the <code>start</code> method of the delegate doclet.
+	 *
+	 * @param root the (filtered) root doc
+	 * @return the result of the delegate doclet
+	 * @see Doclet#start(RootDoc)
+	 */
+	boolean start(RootDoc root) {
+		return ((Boolean) invoke("start", new Object[] { root })).booleanValue();
+	}
+
+	/**
+	 * Create a view of a root doc, that returns the given options.
+	 *
+	 * @param root the root doc
+	 * @param options the options to be returned by {@link RootDoc#options()}
+	 * @param reporter receives the messages printed by the delegate doclet
+	 * using the {@link DocErrorReporter} methods of the view. If 
+	 * <code>null</code>, the messages are printed by <code>root</code>.
+	 * @return the view. All other methods are forwarded to <code>root</code>.
+	 */
+	static RootDoc createView(RootDoc root, String[][] options, DocErrorReporter reporter) {
+		return (RootDoc) Proxy.newProxyInstance(RootDoc.class.getClassLoader(),
+				new Class<?>[] { RootDoc.class }, new RootDocView(root, options, reporter));
+	}
+
+	/**
+	 * The invocation handler of a view created by {@link DelegateDoclet#createView(RootDoc, String[][], DocErrorReporter)}.
+	 */
+	private static final class RootDocView implements InvocationHandler {
+		private final RootDoc root;
+		private final String[][] options;
+		private final DocErrorReporter reporter;
+
+		RootDocView(RootDoc root, String[][] options, DocErrorReporter reporter) {
+			this.root = root;
+			this.options = options;
+			this.reporter = reporter != null ? reporter : root;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if ("options".equals(name) && method.getParameterTypes().length == 0) {
+				String[][] result = new String[options.length][];
+				for (int i = 0; i < options.length; i++) {
+					result[i] = options[i].clone();
+				}
+				return result;
+			}
+			if ("equals".equals(name) && method.getParameterTypes().length == 1 && args[0] == proxy) {
+				return Boolean.TRUE;
+			}
+			try {
+				if (method.getDeclaringClass() == DocErrorReporter.class)
+					return method.invoke(reporter, args);
+				return method.invoke(root, args);
+			} catch (InvocationTargetException e) {
+				throw e.getTargetException();
+			}
+		}
+	}
+
+	/**
+	 * An error reporter, that holds the messages of a delegate doclet,
+	 * until they are printed by {@link #replay(DocErrorReporter)}.
+	 *
+	 * <p>
+	 * Delegate doclets, that run concurrently, report to a buffer each. 
+	 * Therefore the messages of different delegates don't interleave.
+	 * </p>
+	 */
+	static final class MessageBuffer implements DocErrorReporter {
+		private static final int ERROR = 0;
+		private static final int WARNING = 1;
+		private static final int NOTICE = 2;
+
+		/**
+		 * A message.
+		 */
+		private static final class Message {
+			final int kind;
+			final SourcePosition position;
+			final String text;
+
+			Message(int kind, SourcePosition position, String text) {
+				this.kind = kind;
+				this.position = position;
+				this.text = text;
+			}
+		}
+
+		/**
+		 * the messages. Guarded by <code>this</code>.
+		 */
+		private final List<Message> messages = new ArrayList<Message>();
+
+		private synchronized void add(int kind, SourcePosition position, String text) {
+			messages.add(new Message(kind, position, text));
+		}
+
+		public void printError(String msg) {
+			add(ERROR, null, msg);
+		}
+
+		public void printError(SourcePosition pos, String msg) {
+			add(ERROR, pos, msg);
+		}
+
+		public void printWarning(String msg) {
+			add(WARNING, null, msg);
+		}
+
+		public void printWarning(SourcePosition pos, String msg) {
+			add(WARNING, pos, msg);
+		}
+
+		public void printNotice(String msg) {
+			add(NOTICE, null, msg);
+		}
+
+		public void printNotice(SourcePosition pos, String msg) {
+			add(NOTICE, pos, msg);
+		}
+
+		/**
+		 * Print the messages and forget them.
+		 *
+		 * @param reporter where to print the messages to
+		 */
+		synchronized void replay(DocErrorReporter reporter) {
+			for (int i = 0; i < messages.size(); i++) {
+				Message m = messages.get(i);
+				switch (m.kind) {
+				case ERROR:
+					if (m.position != null)
+						reporter.printError(m.position, m.text);
+					else
+						reporter.printError(m.text);
+					break;
+				case WARNING:
+					if (m.position != null)
+						reporter.printWarning(m.position, m.text);
+					else
+						reporter.printWarning(m.text);
+					break;
+				default:
+					if (m.position != null)
+						reporter.printNotice(m.position, m.text);
+					else
+						reporter.printNotice(m.text);
+				}
+			}
+			messages.clear();
+		}
+	}
+}
@@ -27,15 +27,17 @@
 
 package de.kruis.padoclet;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.sun.javadoc.DocErrorReporter;
 import com.sun.javadoc.Doclet;
@@ -44,6 +46,7 @@ import com.sun.javadoc.RootDoc;
 
 import de.kruis.padoclet.util.AbstractOption;
 import de.kruis.padoclet.util.HalfDynamicProxy;
+import de.kruis.padoclet.util.OptionSnapshot;
 import de.kruis.padoclet.util.HalfDynamicProxy.MessageInterface;
 
 /**
@@ -59,7 +62,7 @@ import de.kruis.padoclet.util.HalfDynamicProxy.MessageInterface;
  *  This class is not a doclet by itself. It is intended as a base class for 
  *  a doclet. The derived class has to implement the static methods required by 
  *  a doclet and to setup the options ({@link FilterDocletBase.Option#register(AbstractOption)})
- *  and the proxy table ({@link de.kruis.padoclet.util.HalfDynamicProxy#setProxyClassTable(Class[][])}).
+ *  and the proxy table ({@link #getProxyClassTable()}).
  *  See {@link de.kruis.padoclet.PublishedApiDoclet} for an example.
  *  
  * @author kruis
@@ -71,41 +74,59 @@ public class FilterDocletBase implements MessageInterface {
      * The name of the system property, that contains the name of the
      * delegate doclet. If this system property is unset, the default 
      * doclet (<code>com.sun.tools.doclets.standard.Standard</code>) is used.
+     * <p>
+     * The property may contain a comma separated list of delegate doclets.
+     * All delegates format the same filtered root doc, one after the other,
+     * therefore the sources are parsed and filtered only once. Each delegate 
+     * gets the options, that it accepts. Options accepted by several 
+     * delegates (i.e. <code>-d</code>) are passed to each of them.
+     * If the option <code>ParallelDelegates</code> is given, the delegates
+     * run concurrently.
+     * </p>
      */
     public static final String PAD_DELEGATE_DOCLET_SYSTEM_PROPERTY = "PublishedApiDoclet.delegate";
     
     
-    /**
-     * This class is used to perform a lazy instantiation of the
-     * delegate / formating doclet class.
-     * 
-     * @author kruis
-     * @pad.exclude 
-     */
-    private static class DH {
-		/**
-         * holds the delegate doclet
-         */
-        public static final Class<?> delegateDoclet;
-        static {
-            String classname = System.getProperty(PAD_DELEGATE_DOCLET_SYSTEM_PROPERTY);
-            if (classname == null || classname.length() == 0)
-            	classname = "com.sun.tools.doclets.standard.Standard";
-            Class<?> clazz = null;
-            try {
-                clazz = Thread.currentThread().getContextClassLoader().loadClass(classname);
-            } catch (Exception e) {
-                e.printStackTrace();
-            } 
-            delegateDoclet = clazz;
-        }
-    }
 
     
     /**
      * holds the error reporter provided by the javadoc core
      */
     private DocErrorReporter errorReporter;
+    
+    /**
+     * If <code>true</code>, use proxy classes generated at runtime instead 
+     * of {@link java.lang.reflect.Proxy}.
+     */
+    private boolean generatedProxies;
+
+    /**
+     * If <code>true</code>, report the hit and miss counters of the 
+     * memoized proxy methods.
+     */
+    private boolean memoStatistics;
+
+    /**
+     * The maximum number of remembered proxies without state of their own 
+     * (i.e. for tags and types). 0 means unlimited.
+     */
+    private int proxyCacheLimit;
+
+    /**
+     * If <code>true</code>, run several delegate doclets concurrently.
+     */
+    private boolean parallelDelegates;
+
+    /**
+     * <code>true</code>, while several delegate doclets run concurrently.
+     * Set by {@link #startHelper(RootDoc, FilterDocletBase)}.
+     */
+    private boolean concurrentDelegates;
+
+    /**
+     * The options of this doclet. Set by {@link #configure(String[][])}.
+     */
+    private OptionSnapshot options;
    
     /**
      * Create a new <code>FilterDocletBase</code> instance.
@@ -130,6 +151,129 @@ public class FilterDocletBase implements MessageInterface {
         this.errorReporter = errorReporter;
     }
 
+	/**
+	 * @return Returns the generatedProxies.
+	 */
+	public final boolean isGeneratedProxies() {
+		return generatedProxies;
+	}
+
+	/**
+	 * @param generatedProxies The generatedProxies to set.
+	 */
+	public final void setGeneratedProxies(boolean generatedProxies) {
+		this.generatedProxies = generatedProxies;
+	}
+
+	/**
+	 * @return Returns the memoStatistics.
+	 */
+	public final boolean isMemoStatistics() {
+		return memoStatistics;
+	}
+
+	/**
+	 * @param memoStatistics The memoStatistics to set.
+	 */
+	public final void setMemoStatistics(boolean memoStatistics) {
+		this.memoStatistics = memoStatistics;
+	}
+
+	/**
+	 * @return Returns the proxyCacheLimit.
+	 */
+	public final int getProxyCacheLimit() {
+		return proxyCacheLimit;
+	}
+
+	/**
+	 * @param proxyCacheLimit The proxyCacheLimit to set.
+	 */
+	public final void setProxyCacheLimit(int proxyCacheLimit) {
+		this.proxyCacheLimit = proxyCacheLimit;
+	}
+
+	/**
+	 * @return Returns the parallelDelegates.
+	 */
+	public final boolean isParallelDelegates() {
+		return parallelDelegates;
+	}
+
+	/**
+	 * @param parallelDelegates The parallelDelegates to set.
+	 */
+	public final void setParallelDelegates(boolean parallelDelegates) {
+		this.parallelDelegates = parallelDelegates;
+	}
+
+	/**
+	 * Test, if several delegate doclets run concurrently.
+	 * 
+	 * If <code>true</code>, each call into the javadoc core holds a lock, 
+	 * that is shared by all proxies. The invocation handlers must hold the 
+	 * lock while they call their proxy targets directly (see
+	 * {@link HalfDynamicProxy#getTargetLock()}).
+	 * 
+	 * @return <code>true</code>, if the option <code>ParallelDelegates</code>
+	 * is given and there are several delegates.
+	 */
+	protected final boolean isConcurrentDelegates() {
+		return concurrentDelegates;
+	}
+
+	/**
+	 * @return Returns the options of this doclet or <code>null</code>, if
+	 * the doclet has not been configured yet.
+	 */
+	public final OptionSnapshot getOptions() {
+		return options;
+	}
+
+	/**
+	 * Compile the options of a command line.
+	 * 
+	 * This implementation returns {@link Option#compile(String[][])}. 
+	 * Override this method, if the default value of an option depends 
+	 * on other options.
+	 * 
+	 * @param docletoptions the options as provided by the javadoc core.
+	 * @return the compiled options
+	 */
+	protected OptionSnapshot compileOptions(String[][] docletoptions) {
+		return Option.compile(docletoptions);
+	}
+
+	/**
+	 * Configure this doclet.
+	 * 
+	 * Compiles the options of the command line and assigns their values 
+	 * to the matching properties of this doclet.
+	 * 
+	 * @param docletoptions the options as provided by the javadoc core.
+	 * @throws Throwable if an option value is invalid
+	 * @see OptionSnapshot#applyTo(Object)
+	 */
+	protected final void configure(String[][] docletoptions) throws Throwable {
+		OptionSnapshot snapshot = compileOptions(docletoptions);
+		snapshot.applyTo(this);
+		this.options = snapshot;
+	}
+
+	/**
+	 * Get the proxy class table for the proxies of a run.
+	 * 
+	 * This implementation returns the default table of the 
+	 * {@link HalfDynamicProxy} class. Override this method to 
+	 * provide the table of a derived doclet.
+	 * 
+	 * @return the proxy class table. See 
+	 * {@link HalfDynamicProxy#setProxyClassTable(Class[][])} for the format.
+	 */
+	protected Class<?>[][] getProxyClassTable() {
+		return HalfDynamicProxy.getProxyClassTable();
+	}
+
 
 	/* (non-Javadoc)
 	 * @see de.kruis.padoclet.HalfDynamicProxy.MessageInterface#recive(java.lang.String)
@@ -144,56 +288,6 @@ public class FilterDocletBase implements MessageInterface {
 		}
 	}   
     
-    /**
-     * Invoke a static method on the delegate doclet.
-     * 
-     * This method performs a few security checks.
-     * 
-     * @param name name of the method to be invoked
-     * @param par an array, that contains the method parameters
-     * @return the return value of the invoked method.
-     */
-    private static Object delegateDocletInvoke(String name, Object[] par) {
-        try{
-        Method[] docletmethods = Doclet.class.getMethods();
-        for(int i=0;i<docletmethods.length;i++) {
-            if(! docletmethods[i].getName().equals(name)) 
-                continue;
-            int modifiers = docletmethods[i].getModifiers();
-            if (! (Modifier.isStatic(modifiers) && Modifier.isPublic(modifiers)))
-                continue;
-            Class<?>[] partypes = docletmethods[i].getParameterTypes();
-            if (partypes.length != (par!=null ? par.length : 0)) 
-                continue;
-            for(int j=0;j<partypes.length;j++) {
-                if (! (par[j] == null || partypes[j].isInstance(par[j]))) 
-                    continue;
-            }
-            // OK, we have the right method signature
-            Method m = DH.delegateDoclet.getMethod(name, partypes);
-            modifiers = m.getModifiers();
-            if (! (Modifier.isStatic(modifiers) && Modifier.isPublic(modifiers)))
-                throw new NoSuchMethodException("Method is not public static: "+m.toString());
-            if (! docletmethods[i].getReturnType().isAssignableFrom(m.getReturnType()))
-                throw new NoSuchMethodException("Method has incompatible return type: "+m.toString());
-            try {
-            	return m.invoke(null,par);
-            }catch(InvocationTargetException e) {
-            	Throwable targetException = e.getTargetException();
-            	if (targetException instanceof Exception) {
-            		throw (Exception) targetException;
-            	} else {
-            		throw new RuntimeException(targetException);
-            	}
-            }
-        }
-        throw new NoSuchMethodException(name);
-        } catch(RuntimeException e) {
-            throw e;
-        } catch(Exception e) {
-            throw new RuntimeException(e);
-        }
-    }
     
     
     /**
@@ -242,6 +336,12 @@ public class FilterDocletBase implements MessageInterface {
     	 */
     	private static Map<String,AbstractOption> options = new TreeMap<String, AbstractOption>();
 
+    	/**
+    	 * holds the snapshot compiled last or <code>null</code>. Guarded
+    	 * by <code>Option.class</code>.
+    	 */
+    	private static OptionSnapshot snapshot;
+
     	/**
     	 * Register an option.
     	 * 
@@ -250,8 +350,38 @@ public class FilterDocletBase implements MessageInterface {
     	 * 
     	 * @param option the option to register.
     	 */
-    	public static void register(AbstractOption option) {
+    	public static synchronized void register(AbstractOption option) {
     		register(option,options);
+    		snapshot = null;
+    	}
+
+    	/**
+    	 * Compile the options of a command line.
+    	 * 
+    	 * @param docletoptions the options as provided by the javadoc core.
+    	 * @return the compiled options. Repeated calls with the same options
+    	 * return the same snapshot.
+    	 * @see Doclet#validOptions(java.lang.String[][], com.sun.javadoc.DocErrorReporter)
+    	 * @see RootDoc#options()
+    	 */
+    	public static OptionSnapshot compile(String[][] docletoptions) {
+    		return compile(docletoptions, null);
+    	}
+
+    	/**
+    	 * Compile the options of a command line.
+    	 * 
+    	 * @param docletoptions the options as provided by the javadoc core.
+    	 * @param defaults default values, that replace the registered default
+    	 * values. The key is the option name. May be <code>null</code>.
+    	 * @return the compiled options.
+    	 * @see OptionSnapshot#compile(String[][], Map)
+    	 */
+    	public static synchronized OptionSnapshot compile(String[][] docletoptions, Map<String,String> defaults) {
+    		if (snapshot == null)
+    			snapshot = new OptionSnapshot(options);
+    		snapshot = snapshot.compile(docletoptions, defaults);
+    		return snapshot;
     	}
     	
     	/**
@@ -291,7 +421,13 @@ public class FilterDocletBase implements MessageInterface {
     	 * @return 1, if the option takes no parameters, 2, if the option takes a parameter. If the option is unknown, return 0.
     	 */
     	public static int optionLength(String name) {
-    		return optionLength(name, options);
+    		OptionSnapshot s;
+    		synchronized (Option.class) {
+    			if (snapshot == null)
+    				snapshot = new OptionSnapshot(options);
+    			s = snapshot;
+    		}
+    		return s.optionLength(name);
     	}
     	/**
     	 * Initialize the option values.
@@ -324,6 +460,19 @@ public class FilterDocletBase implements MessageInterface {
     		register(new Option("NoTagOptions","Do not add -tag-options to the option list of the formating doclet."+LI
     				+"Use this option, if your formating doclet doesn't understand the \"-tag <tagname>:X\" option."));
     		register(new Option("Help","Show this help message."));
+    		register(new Option("GeneratedProxies","Use proxy classes generated at runtime instead of java.lang.reflect.Proxy."+LI
+    				+"Generated proxies call the javadoc core without reflection."));
+    		register(new Option("MemoStatistics","Report the hit and miss counters of the memoized proxy methods,"+LI
+    				+"after the delegate doclet finished."));
+    		register(new Option("ProxyCacheLimit","0",false,"The maximum number of remembered proxies for tags, types and other items,"+LI
+    				+"that are not filtered themselves. If the limit is reached, the least recently used proxy"+LI
+    				+"is forgotten and recreated on demand. Use this option to reduce the memory consumption"+LI
+    				+"for very large source trees. 0 means unlimited."));
+    		register(new Option("ParallelDelegates","Run the delegate doclets concurrently, if the system property "+PAD_DELEGATE_DOCLET_SYSTEM_PROPERTY+LI
+    				+"names several doclets. The messages of the second and all further delegates are"+LI
+    				+"printed, after the delegate finished. The javadoc core is not thread safe, therefore"+LI
+    				+"the delegates call it one at a time. Filtered results, that are already known, and"+LI
+    				+"the own work of the delegates (i.e. writing files) overlap."));
     	}
     }
     
@@ -341,15 +490,37 @@ public class FilterDocletBase implements MessageInterface {
     	 * @see RootDoc#options()
      */
     protected static String[][] filterOptions(String [][] options) {
+    	return filterOptions(options, null);
+    }
+
+    /**
+     * Filter the command line options seen by a formating Doclet.
+     * 
+     * @param options the options as provided by the javadoc core
+     * @param delegate the delegate doclet. If there are several delegates,
+     * options unknown to this delegate are removed, too. If <code>null</code>, 
+     * keep the options of all delegates.
+     * @return the filtered options
+     * @see #filterOptions(String[][])
+     */
+    private static String[][] filterOptions(String [][] options, DelegateDoclet delegate) {
+        List<DelegateDoclet> delegates = DelegateDoclet.getDelegates();
+        boolean filterDelegateOptions = delegate != null && delegates.size() > 1;
+        if (delegate == null)
+        	delegate = delegates.get(0);
         // filter our own options
+        OptionSnapshot snapshot = Option.compile(options);
         List<String[]> filteredOptions = new ArrayList<String[]>();
         for(int i=0; i<options.length; i++) {
-        	if (Option.optionLength(options[i][0]) == 0)
-        		filteredOptions.add(options[i]);
+        	if (snapshot.optionLength(options[i][0]) != 0)
+        		continue;
+        	if (filterDelegateOptions && delegate.optionLength(options[i][0]) == 0)
+        		continue;
+        	filteredOptions.add(options[i]);
         }
-        if((! Option.get("NoTagOptions").isSet()) && optionLengthHelper("-tag",FilterDocletBase.class.getName()) == 2) {
+        if((! snapshot.isSet("NoTagOptions")) && delegate.optionLength("-tag") == 2) {
         	// the -tag option of the standard doclet seems to be supported
-        	Iterator<String> iterator = Option.getTags().iterator();
+        	Iterator<String> iterator = snapshot.getTags().iterator();
         	while(iterator.hasNext()) {
         		filteredOptions.add(new String[] {"-tag", iterator.next()+":X"});
         	}
@@ -375,14 +546,16 @@ public class FilterDocletBase implements MessageInterface {
      */
     protected static boolean validOptionsHelper(String[][] options,
             DocErrorReporter reporter, boolean showHelp, String className) throws java.io.IOException {
-    	Option.initOptions(options);
-    	AbstractOption helpOption = Option.get("Help");
-    	if (helpOption != null && helpOption.isSet()) {
+    	if (Option.compile(options).isSet("Help")) {
     		showHelp = true;
     	}
-        if (!((Boolean) delegateDocletInvoke("validOptions", new Object[] {filterOptions(options),reporter})).booleanValue()) {
-        	showHelp = true;
-        }
+    	List<DelegateDoclet> delegates = DelegateDoclet.getDelegates();
+    	for(int i=0; i<delegates.size(); i++) {
+    		DelegateDoclet delegate = delegates.get(i);
+    		if (! delegate.validOptions(filterOptions(options, delegate), reporter)) {
+    			showHelp = true;
+    		}
+    	}
         if (showHelp) {
         	reporter.printNotice(Option.LF+
         			FilterDocletBase.class.getName()+ " options:"+
@@ -405,7 +578,13 @@ public class FilterDocletBase implements MessageInterface {
     	int length = Option.optionLength(option);
     	if (length > 0)
     		return length;
-        length = ((Integer) delegateDocletInvoke("optionLength",new Object[] {option})).intValue();
+    	// ask all delegates, even if the first one knows the option
+    	List<DelegateDoclet> delegates = DelegateDoclet.getDelegates();
+    	for(int i=0; i<delegates.size(); i++) {
+    		int delegateLength = delegates.get(i).optionLength(option);
+    		if (length == 0)
+    			length = delegateLength;
+    	}
         if ("-help".equals(option)) {
             System.out.println(Option.LF+"Provided by "+className+" doclet:"
                     +Option.LF+Option.getDescriptions());
@@ -420,10 +599,18 @@ public class FilterDocletBase implements MessageInterface {
 	 * See {@link PublishedApiDoclet#languageVersion()} for an example on how to
 	 * use this method.
 	 * 
-	 * @return the language version supported by the delegate doclet.
+	 * @return the language version supported by the delegate doclet. If
+	 * there are several delegates, {@link LanguageVersion#JAVA_1_1} is returned,
+	 * unless all delegates support {@link LanguageVersion#JAVA_1_5}.
 	 */
     protected static LanguageVersion languageVersionHelper() {
-    	return (LanguageVersion) delegateDocletInvoke("languageVersion", null);
+    	List<DelegateDoclet> delegates = DelegateDoclet.getDelegates();
+    	LanguageVersion languageVersion = delegates.get(0).languageVersion();
+    	for(int i=1; i<delegates.size(); i++) {
+    		if (delegates.get(i).languageVersion() != languageVersion)
+    			languageVersion = LanguageVersion.JAVA_1_1;
+    	}
+    	return languageVersion;
     }
     
     
@@ -440,18 +627,117 @@ public class FilterDocletBase implements MessageInterface {
      */
     protected static boolean startHelper(RootDoc root, FilterDocletBase fd) throws java.io.IOException {
         // process our options
-        Option.initOptions(root.options());
         try {
-			Option.initJavaBeanProperties(fd);
+			fd.configure(root.options());
 		} catch (Throwable e) {
 			e.printStackTrace();
 			root.printError(e.toString());
 			return false;
 		}
         fd.setErrorReporter(root);
-        RootDoc filteredRootDoc = (RootDoc) HalfDynamicProxy.getHDPProxy(root, RootDoc.class, HalfDynamicProxy.stateFactory(fd,fd));
-        fd.preDelegateStartHook(filteredRootDoc);
-        return ((Boolean) delegateDocletInvoke("start", new Object[]{ filteredRootDoc })).booleanValue();
+        List<DelegateDoclet> delegates = DelegateDoclet.getDelegates();
+        fd.concurrentDelegates = fd.isParallelDelegates() && delegates.size() > 1;
+        // concurrent delegates must not call the javadoc core concurrently
+        HalfDynamicProxy.HDPState state = HalfDynamicProxy.stateFactory(fd,fd,fd.isGeneratedProxies(),
+        		fd.getProxyCacheLimit(),fd.getProxyClassTable(),fd.concurrentDelegates);
+        try {
+	        RootDoc filteredRootDoc = (RootDoc) HalfDynamicProxy.getHDPProxy(root, RootDoc.class, state);
+	        if (fd.concurrentDelegates) {
+	        	// the proxy serializes the messages with the other calls into the core
+	        	fd.setErrorReporter(filteredRootDoc);
+	        }
+	        fd.preDelegateStartHook(filteredRootDoc);
+	        boolean result = true;
+	        if (delegates.size() == 1) {
+	        	result = delegates.get(0).start(filteredRootDoc);
+	        } else if (fd.concurrentDelegates) {
+	        	result = startConcurrently(root, filteredRootDoc, delegates);
+	        } else {
+	        	// all delegates share the proxies and the inclusion state
+	        	for(int i=0; i<delegates.size(); i++) {
+	        		DelegateDoclet delegate = delegates.get(i);
+	        		RootDoc view = DelegateDoclet.createView(filteredRootDoc, filterOptions(root.options(), delegate), null);
+	        		if (! delegate.start(view))
+	        			result = false;
+	        	}
+	        }
+	        fd.postDelegateStartHook(filteredRootDoc);
+	        if (fd.isMemoStatistics()) {
+	        	HalfDynamicProxy.reportMemoStatistics(state, fd);
+	        }
+	        return result;
+        } finally {
+        	// the delegates are done. Don't keep the proxies of this run alive.
+        	state.close();
+        }
+    }
+
+    /**
+     * Run several delegate doclets concurrently on the same filtered root doc.
+     * 
+     * The first delegate runs on the current thread and prints its messages 
+     * immediately. Each other delegate gets a thread of its own. Its messages
+     * are buffered and printed, after it finished, in the order of the 
+     * delegates. The javadoc core is not thread safe, therefore the 
+     * proxies of the filtered root doc must serialize the calls into the core (see 
+     * {@link HalfDynamicProxy.HDPState#isSerialized()}).
+     * 
+     * @param root the RootDoc object as provided by the javadoc core.
+     * @param filteredRootDoc the filtered root doc
+     * @param delegates the delegate doclets
+     * @return <code>true</code>, if all delegates succeeded.
+     */
+    private static boolean startConcurrently(RootDoc root, RootDoc filteredRootDoc, List<DelegateDoclet> delegates) {
+    	int count = delegates.size();
+    	DelegateDoclet.MessageBuffer[] buffers = new DelegateDoclet.MessageBuffer[count];
+    	List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+    	ExecutorService executor = Executors.newFixedThreadPool(count - 1);
+    	boolean result = true;
+    	Throwable failure = null;
+    	try {
+    		for(int i=1; i<count; i++) {
+    			final DelegateDoclet delegate = delegates.get(i);
+    			buffers[i] = new DelegateDoclet.MessageBuffer();
+    			final RootDoc view = DelegateDoclet.createView(filteredRootDoc, filterOptions(root.options(), delegate), buffers[i]);
+    			futures.add(executor.submit(new Callable<Boolean>() {
+    				public Boolean call() {
+    					return Boolean.valueOf(delegate.start(view));
+    				}
+    			}));
+    		}
+    		DelegateDoclet first = delegates.get(0);
+    		try {
+    			result = first.start(DelegateDoclet.createView(filteredRootDoc, filterOptions(root.options(), first), null));
+    		} catch (RuntimeException e) {
+    			failure = e;
+    		} catch (Error e) {
+    			failure = e;
+    		}
+    		// wait for all delegates, because the proxies get released afterwards
+    		for(int i=1; i<count; i++) {
+    			try {
+    				if (! futures.get(i-1).get().booleanValue())
+    					result = false;
+    			} catch (InterruptedException e) {
+    				Thread.currentThread().interrupt();
+    				if (failure == null)
+    					failure = e;
+    			} catch (ExecutionException e) {
+    				if (failure == null)
+    					failure = e.getCause();
+    			}
+    			buffers[i].replay(root);
+    		}
+    	} finally {
+    		executor.shutdown();
+    	}
+    	if (failure instanceof RuntimeException)
+    		throw (RuntimeException) failure;
+    	if (failure instanceof Error)
+    		throw (Error) failure;
+    	if (failure != null)
+    		throw new RuntimeException(failure);
+    	return result;
     }
 	
     /**
@@ -465,6 +751,17 @@ public class FilterDocletBase implements MessageInterface {
 	protected void preDelegateStartHook(RootDoc filteredRootDoc) {
 	}
 
+    /**
+     * Hook method called after the start-method of the delegate doclet.
+     * 
+     * This implementation is an empty method, that does nothing.
+     * Override this method, if you want to perform any operations within this hook.
+     * 
+	 * @param filteredRootDoc the filtered RootDoc.
+	 */
+	protected void postDelegateStartHook(RootDoc filteredRootDoc) {
+	}
+
 	/**
      * This class is the base of all the 
      * HalfDynamicProxy classes for the javadoc *Doc interfaces.
@@ -483,7 +780,10 @@ public class FilterDocletBase implements MessageInterface {
 		 */
 		@SuppressWarnings("unchecked")
 		public int compareTo(Object o) {
-			return ((Comparable<Object>)target).compareTo(unwrap(o));
+			Object other = unwrap(o);
+			synchronized (getTargetLock()) {
+				return ((Comparable<Object>)target).compareTo(other);
+			}
 		}		
 	}
 	
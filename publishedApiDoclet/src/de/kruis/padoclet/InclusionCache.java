@@ -0,0 +1,468 @@
+/*
+ *  PublishedApiDoclet - a filter proxy for any javadoc doclet
+ *
+ *  Copyright (C) 2010  Anselm Kruis <a.kruis@science-computing.de>
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package de.kruis.padoclet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.javadoc.ClassDoc;
+import com.sun.javadoc.Doc;
+import com.sun.javadoc.ExecutableMemberDoc;
+import com.sun.javadoc.FieldDoc;
+import com.sun.javadoc.PackageDoc;
+import com.sun.javadoc.SourcePosition;
+
+/**
+ * A persistent cache of the inclusion priorities.
+ *
+ * <p>
+ * The cache stores the tag priorities and the computed inclusion
+ * priorities of each package, class and member together with a hash of
+ * the content of its source file. A later run trusts the stored values,
+ * if the source file is unchanged. If the inclusion priority of the
+ * parent changed, the priorities are recomputed from the stored tag
+ * priorities.
+ * </p>
+ * <p>
+ * The cache file is a compact binary file: a header followed by fixed
+ * size records sorted by the hash of the qualified name. The file is
+ * memory mapped for reading and a lookup is a binary search. The header
+ * contains a hash of the filter configuration. If the configuration
+ * changes, the content of the file is ignored.
+ * </p>
+ * <p>
+ * A mapped file can't be replaced or deleted on some platforms, as long
+ * as the mapping exists. Therefore the cache uses two files alternately:
+ * the given file and a file with the suffix {@link #ALTERNATE_SUFFIX}. 
+ * A run reads the file with the higher generation number in its 
+ * header and writes the other one.
+ * </p>
+ *
+ * @author kruis
+ */
+final class InclusionCache {
+
+	/**
+	 * the magic number of the file: "PADC"
+	 */
+	private static final int MAGIC = 0x50414443;
+	/**
+	 * the version of the file format
+	 */
+	private static final int VERSION = 2;
+	/**
+	 * the size of the header: magic, version, generation, configuration 
+	 * hash and number of records.
+	 */
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+	/**
+	 * the suffix of the name of the alternate cache file
+	 */
+	static final String ALTERNATE_SUFFIX = ".alt";
+	/**
+	 * the size of a record: key hash, file hash and {@link #VALUE_COUNT}
+	 * int values.
+	 */
+	private static final int RECORD_SIZE = 8 + 8 + 4 * 7;
+
+	/*
+	 * the indices of the values of a record
+	 */
+	static final int PARENT_PRIORITY = 4;
+	static final int PRIORITY = 5;
+	static final int CHILD_PRIORITY = 6;
+	/**
+	 * the number of int values of a record. The first values are the tag
+	 * priorities.
+	 */
+	static final int VALUE_COUNT = 7;
+	/**
+	 * the value of {@link #PARENT_PRIORITY}, if only the tag priorities
+	 * are known.
+	 */
+	static final int UNKNOWN_PRIORITY = Integer.MIN_VALUE;
+
+	/**
+	 * A record of the current run.
+	 */
+	private static final class Record {
+		final String key;
+		final long keyHash;
+		final long fileHash;
+		final int[] values;
+
+		Record(String key, long keyHash, long fileHash, int[] values) {
+			this.key = key;
+			this.keyHash = keyHash;
+			this.fileHash = fileHash;
+			this.values = values;
+		}
+	}
+
+	/**
+	 * The header of a cache file.
+	 */
+	private static final class Header {
+		final long generation;
+		final long configurationHash;
+		final int count;
+
+		Header(long generation, long configurationHash, int count) {
+			this.generation = generation;
+			this.configurationHash = configurationHash;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * the cache file written by {@link #save()}. It is not mapped.
+	 */
+	private final File file;
+
+	/**
+	 * the generation number written by {@link #save()}
+	 */
+	private final long generation;
+
+	/**
+	 * the hash of the filter configuration
+	 */
+	private final long configurationHash;
+
+	/**
+	 * the records of the previous run or <code>null</code>.
+	 */
+	private final ByteBuffer previous;
+
+	/**
+	 * the number of records in {@link #previous}
+	 */
+	private final int previousCount;
+
+	/**
+	 * the records of the current run, mapped by the key hash.
+	 */
+	private final ConcurrentHashMap<Long, Record> records = new ConcurrentHashMap<Long, Record>();
+
+	/**
+	 * the content hashes of the source files
+	 */
+	private final ConcurrentHashMap<File, Long> fileHashes = new ConcurrentHashMap<File, Long>();
+
+	/*
+	 * statistics
+	 */
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+
+	/**
+	 * Open a cache file.
+	 * 
+	 * @param file the file. Neither the file nor the alternate file need to exist.
+	 * @param configurationHash the hash of the filter configuration
+	 * @throws IOException if a file exists, but can't be read.
+	 */
+	InclusionCache(File file, long configurationHash) throws IOException {
+		this.configurationHash = configurationHash;
+		File[] files = new File[] { file, new File(file.getPath() + ALTERNATE_SUFFIX) };
+		int current = -1;
+		Header currentHeader = null;
+		long maxGeneration = 0;
+		for (int i = 0; i < files.length; i++) {
+			Header header = readHeader(files[i]);
+			if (header == null)
+				continue;
+			maxGeneration = Math.max(maxGeneration, header.generation);
+			if (header.configurationHash == configurationHash 
+					&& (currentHeader == null || header.generation > currentHeader.generation)) {
+				current = i;
+				currentHeader = header;
+			}
+		}
+		ByteBuffer buffer = null;
+		if (currentHeader != null) {
+			RandomAccessFile raf = new RandomAccessFile(files[current], "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			} finally {
+				// the mapping stays valid
+				raf.close();
+			}
+		}
+		this.previous = buffer;
+		this.previousCount = currentHeader != null ? currentHeader.count : 0;
+		// write the file, that is not mapped
+		this.file = files[current == 0 ? 1 : 0];
+		this.generation = maxGeneration + 1;
+	}
+
+	/**
+	 * Read the header of a cache file.
+	 * 
+	 * @param file the file
+	 * @return the header or <code>null</code>, if the file doesn't exist,
+	 * has another format or is truncated.
+	 * @throws IOException if the file exists, but can't be read.
+	 */
+	private static Header readHeader(File file) throws IOException {
+		if (! file.isFile() || file.length() < HEADER_SIZE)
+			return null;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.readInt() != MAGIC || raf.readInt() != VERSION)
+				return null;
+			long generation = raf.readLong();
+			long configurationHash = raf.readLong();
+			int count = raf.readInt();
+			if (count < 0 || HEADER_SIZE + (long) count * RECORD_SIZE > raf.length())
+				return null;
+			return new Header(generation, configurationHash, count);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Get the values stored by the previous run for a doc item.
+	 *
+	 * @param doc the (unwrapped) doc item
+	 * @return the values, indexed by the tag priority indices of
+	 * {@link PublishedApiDoclet.TagEvaluator}, {@link #PARENT_PRIORITY},
+	 * {@link #PRIORITY} and {@link #CHILD_PRIORITY} or <code>null</code>,
+	 * if the item is unknown or its source file changed.
+	 */
+	int[] lookup(Doc doc) {
+		String key = getKey(doc);
+		if (key == null || previous == null)
+			return null;
+		long keyHash = hash(key);
+		int low = 0;
+		int high = previousCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int offset = HEADER_SIZE + mid * RECORD_SIZE;
+			long midHash = previous.getLong(offset);
+			if (midHash < keyHash) {
+				low = mid + 1;
+			} else if (midHash > keyHash) {
+				high = mid - 1;
+			} else {
+				long fileHash = getFileHash(doc);
+				if (fileHash == -1 || previous.getLong(offset + 8) != fileHash)
+					break;
+				int[] values = new int[VALUE_COUNT];
+				for (int i = 0; i < VALUE_COUNT; i++) {
+					values[i] = previous.getInt(offset + 16 + 4 * i);
+				}
+				hits.incrementAndGet();
+				return values;
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Remember the values of a doc item for the next run.
+	 *
+	 * @param doc the (unwrapped) doc item
+	 * @param values the values, see {@link #lookup(Doc)}.
+	 */
+	void record(Doc doc, int[] values) {
+		String key = getKey(doc);
+		if (key == null)
+			return;
+		Long keyHash = new Long(hash(key));
+		Record record = new Record(key, keyHash.longValue(), getFileHash(doc), values);
+		Record old = records.put(keyHash, record);
+		if (old != null && (old.key == null || ! old.key.equals(key))) {
+			// a hash collision. Don't store any of the items.
+			records.put(keyHash, new Record(null, keyHash.longValue(), 0, null));
+		}
+	}
+
+	/**
+	 * Write the records of the current run to the cache file.
+	 *
+	 * @throws IOException if the file can't be written.
+	 */
+	void save() throws IOException {
+		List<Record> list = new ArrayList<Record>(records.size());
+		Iterator<Record> iterator = records.values().iterator();
+		while (iterator.hasNext()) {
+			Record record = iterator.next();
+			if (record.key != null)
+				list.add(record);
+		}
+		Collections.sort(list, new Comparator<Record>() {
+			public int compare(Record r1, Record r2) {
+				return r1.keyHash < r2.keyHash ? -1 : (r1.keyHash == r2.keyHash ? 0 : 1);
+			}
+		});
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(generation);
+			out.writeLong(configurationHash);
+			out.writeInt(list.size());
+			for (int i = 0; i < list.size(); i++) {
+				Record record = list.get(i);
+				out.writeLong(record.keyHash);
+				out.writeLong(record.fileHash);
+				for (int j = 0; j < VALUE_COUNT; j++) {
+					out.writeInt(record.values[j]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		// the file is not mapped, therefore it can be replaced
+		if (! tmp.renameTo(file)) {
+			file.delete();
+			if (! tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("Can't rename "+tmp+" to "+file);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of successful lookups
+	 */
+	int getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of failed lookups
+	 */
+	int getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Get the key of a doc item.
+	 *
+	 * @param doc the doc item
+	 * @return the key or <code>null</code>, if the item can't be cached.
+	 */
+	private static String getKey(Doc doc) {
+		if (doc instanceof PackageDoc)
+			return "P" + ((PackageDoc) doc).name();
+		if (doc instanceof ClassDoc)
+			return "C" + ((ClassDoc) doc).qualifiedName();
+		if (doc instanceof ExecutableMemberDoc) {
+			ExecutableMemberDoc member = (ExecutableMemberDoc) doc;
+			return "M" + member.qualifiedName() + member.signature();
+		}
+		if (doc instanceof FieldDoc)
+			return "F" + ((FieldDoc) doc).qualifiedName();
+		return null;
+	}
+
+	/**
+	 * Get the hash of the content of the source file of a doc item.
+	 *
+	 * @param doc the doc item
+	 * @return the hash or 0, if the item has no source file.
+	 */
+	private long getFileHash(Doc doc) {
+		SourcePosition position = doc.position();
+		File source = position == null ? null : position.file();
+		if (source == null)
+			return 0;
+		Long hash = fileHashes.get(source);
+		if (hash == null) {
+			hash = new Long(computeFileHash(source));
+			fileHashes.put(source, hash);
+		}
+		return hash.longValue();
+	}
+
+	/**
+	 * Compute the hash of the content of a file.
+	 *
+	 * @param source the file
+	 * @return the first 8 bytes of the MD5 digest of the file or -1, if
+	 * the file can't be read.
+	 */
+	private static long computeFileHash(File source) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			InputStream in = new FileInputStream(source);
+			try {
+				byte[] buffer = new byte[8192];
+				int count;
+				while ((count = in.read(buffer)) > 0) {
+					digest.update(buffer, 0, count);
+				}
+			} finally {
+				in.close();
+			}
+			byte[] bytes = digest.digest();
+			long hash = 0;
+			for (int i = 0; i < 8; i++) {
+				hash = (hash << 8) | (bytes[i] & 0xff);
+			}
+			// -1 means "unreadable"
+			return hash == -1 ? 0 : hash;
+		} catch (IOException e) {
+			return -1;
+		} catch (NoSuchAlgorithmException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Compute a 64 bit FNV-1a hash of a string.
+	 *
+	 * @param s the string
+	 * @return the hash
+	 */
+	static long hash(String s) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			hash ^= s.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+}
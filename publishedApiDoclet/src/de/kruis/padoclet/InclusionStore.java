@@ -0,0 +1,279 @@
+/*
+ *  PublishedApiDoclet - a filter proxy for any javadoc doclet
+ *
+ *  Copyright (C) 2010  Anselm Kruis <a.kruis@science-computing.de>
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package de.kruis.padoclet;
+
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The inclusion state of all filtered doc items.
+ *
+ * <p>
+ * Each doc item gets a dense integer id, when its state is needed for the
+ * first time. The state is stored in columns indexed by this id: a column
+ * of flags, two columns of priorities and a column of included child 
+ * counts. The columns are split into
+ * pages of fixed size. A new page never moves the existing pages,
+ * therefore the store can grow, while other threads update it.
+ * </p>
+ * <p>
+ * The flags of an item are updated atomically. A reader, that sees the
+ * flag {@link #PRIORITY_VALID}, also sees the priorities.
+ * </p>
+ *
+ * @author kruis
+ */
+final class InclusionStore {
+
+	/*
+	 * the flags
+	 */
+	/**
+	 * the item is included. Only valid together with {@link #INCLUDED_VALID}.
+	 */
+	static final int INCLUDED = 1;
+	/**
+	 * the <i>included</i> property of the item is known.
+	 */
+	static final int INCLUDED_VALID = 2;
+	/**
+	 * the computation of the <i>included</i> property started. Used to
+	 * detect a recursion.
+	 */
+	static final int CHECK_STARTED = 4;
+	/**
+	 * the priorities of the item are known.
+	 */
+	static final int PRIORITY_VALID = 8;
+	/**
+	 * the included child count of the item is complete. 
+	 * See {@link #getIncludedChildCount(int)}.
+	 */
+	static final int CHILD_INDEX_COMPLETE = 16;
+
+	private static final int PAGE_BITS = 10;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	/**
+	 * A page of the columns.
+	 */
+	private static final class Page {
+		final AtomicIntegerArray flags = new AtomicIntegerArray(PAGE_SIZE);
+		final int[] priorities = new int[PAGE_SIZE];
+		final int[] childPriorities = new int[PAGE_SIZE];
+		final AtomicIntegerArray includedChildCounts = new AtomicIntegerArray(PAGE_SIZE);
+	}
+
+	/**
+	 * the pages. Replaced by a larger copy, if a new page is required.
+	 */
+	private volatile Page[] pages = new Page[0];
+
+	/**
+	 * the number of ids. Guarded by <code>this</code>.
+	 */
+	private int size;
+
+	/**
+	 * maps the id of an item to the ids of its containers, whose included
+	 * child count must be incremented, if the item is included. Exists 
+	 * only while the included child counts are computed, see 
+	 * {@link #startContainerIndex()}.
+	 */
+	private volatile ConcurrentHashMap<Integer, int[]> containers;
+
+	/**
+	 * Allocate a new id.
+	 *
+	 * @return the id
+	 */
+	synchronized int newId() {
+		int id = size;
+		Page[] pages = this.pages;
+		if ((id >>> PAGE_BITS) == pages.length) {
+			Page[] newPages = new Page[pages.length + 1];
+			System.arraycopy(pages, 0, newPages, 0, pages.length);
+			newPages[pages.length] = new Page();
+			this.pages = newPages;
+		}
+		size = id + 1;
+		return id;
+	}
+
+	/**
+	 * @return the number of allocated ids
+	 */
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Get the flags of an item.
+	 *
+	 * @param id the id of the item
+	 * @return the flags
+	 */
+	int getFlags(int id) {
+		return pages[id >>> PAGE_BITS].flags.get(id & PAGE_MASK);
+	}
+
+	/**
+	 * Set flags of an item.
+	 *
+	 * @param id the id of the item
+	 * @param flags the flags to set. Other flags are unchanged.
+	 */
+	void setFlags(int id, int flags) {
+		AtomicIntegerArray column = pages[id >>> PAGE_BITS].flags;
+		int index = id & PAGE_MASK;
+		int old;
+		do {
+			old = column.get(index);
+		} while (! column.compareAndSet(index, old, old | flags));
+	}
+
+	/**
+	 * Get a priority of an item. The result is only valid, if the flag
+	 * {@link #PRIORITY_VALID} is set.
+	 *
+	 * @param id the id of the item
+	 * @param forChilds if <code>true</code>, get the priority for the childs
+	 * of the item.
+	 * @return the priority
+	 */
+	int getPriority(int id, boolean forChilds) {
+		Page page = pages[id >>> PAGE_BITS];
+		return forChilds ? page.childPriorities[id & PAGE_MASK] : page.priorities[id & PAGE_MASK];
+	}
+
+	/**
+	 * Set the priorities of an item and the flag {@link #PRIORITY_VALID}.
+	 *
+	 * @param id the id of the item
+	 * @param priority the inclusion priority of the item
+	 * @param childPriority the inclusion priority for the childs of the item
+	 */
+	void setPriorities(int id, int priority, int childPriority) {
+		Page page = pages[id >>> PAGE_BITS];
+		page.priorities[id & PAGE_MASK] = priority;
+		page.childPriorities[id & PAGE_MASK] = childPriority;
+		// publishes the priorities
+		setFlags(id, PRIORITY_VALID);
+	}
+
+	/**
+	 * Get the number of included childs of an item, that are relevant for
+	 * the <i>inclusion required</i> check. The result is only valid, if the 
+	 * flag {@link #CHILD_INDEX_COMPLETE} is set.
+	 *
+	 * @param id the id of the item
+	 * @return the number of included childs
+	 */
+	int getIncludedChildCount(int id) {
+		return pages[id >>> PAGE_BITS].includedChildCounts.get(id & PAGE_MASK);
+	}
+
+	/**
+	 * Add to the number of included childs of an item.
+	 *
+	 * @param id the id of the item
+	 * @param delta the number of additional included childs
+	 */
+	void addIncludedChilds(int id, int delta) {
+		pages[id >>> PAGE_BITS].includedChildCounts.addAndGet(id & PAGE_MASK, delta);
+	}
+
+	/**
+	 * Start to record the containers of the items. 
+	 * See {@link #addContainer(int, int)}.
+	 */
+	void startContainerIndex() {
+		containers = new ConcurrentHashMap<Integer, int[]>();
+	}
+
+	/**
+	 * Stop to record the containers of the items and forget the recorded ones.
+	 */
+	void endContainerIndex() {
+		containers = null;
+	}
+
+	/**
+	 * Record a container of an item, whose <i>included</i> property is not 
+	 * yet known. The caller must prevent concurrent calls of this method 
+	 * and {@link #countIncludedChild(int)} for the same item.
+	 *
+	 * @param id the id of the item
+	 * @param containerId the id of the container
+	 */
+	void addContainer(int id, int containerId) {
+		ConcurrentHashMap<Integer, int[]> containers = this.containers;
+		if (containers == null)
+			return;
+		Integer key = Integer.valueOf(id);
+		int[] old = containers.get(key);
+		int[] ids;
+		if (old == null) {
+			ids = new int[] { containerId };
+		} else {
+			ids = new int[old.length + 1];
+			System.arraycopy(old, 0, ids, 0, old.length);
+			ids[old.length] = containerId;
+		}
+		containers.put(key, ids);
+	}
+
+	/**
+	 * Count an included item as included child of its recorded containers.
+	 *
+	 * @param id the id of the item
+	 */
+	void countIncludedChild(int id) {
+		ConcurrentHashMap<Integer, int[]> containers = this.containers;
+		if (containers == null)
+			return;
+		int[] ids = containers.remove(Integer.valueOf(id));
+		if (ids == null)
+			return;
+		for (int i = 0; i < ids.length; i++) {
+			addIncludedChilds(ids[i], 1);
+		}
+	}
+
+	/**
+	 * Get the ids of all items, whose flags contain the given flags.
+	 *
+	 * @param flags the flags
+	 * @return the set of ids
+	 */
+	BitSet select(int flags) {
+		BitSet result = new BitSet();
+		int size = size();
+		Page[] pages = this.pages;
+		for (int id = 0; id < size; id++) {
+			if ((pages[id >>> PAGE_BITS].flags.get(id & PAGE_MASK) & flags) == flags)
+				result.set(id);
+		}
+		return result;
+	}
+}
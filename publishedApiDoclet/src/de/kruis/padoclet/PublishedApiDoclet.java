@@ -27,11 +27,23 @@
 
 package de.kruis.padoclet;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Array;
-import java.lang.reflect.Proxy;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -57,6 +69,8 @@ import com.sun.tools.javadoc.Main;
 
 import de.kruis.padoclet.util.AbstractOption;
 import de.kruis.padoclet.util.HalfDynamicProxy;
+import de.kruis.padoclet.util.InvocationHandlerWithTarget;
+import de.kruis.padoclet.util.OptionSnapshot;
 
 /**
  * This class is a java 1.5 doclet, that is used as a filter between the javadoc
@@ -131,6 +145,43 @@ public class PublishedApiDoclet extends FilterDocletBase {
      * If <code>true</code>, do not filter annotation elements
      */
     private boolean dontFilterAnnotationElements;
+    /**
+     * If <code>true</code>, compute the inclusion of all items before the
+     * delegate doclet starts.
+     */
+    private boolean eagerInclusion;
+    /**
+     * The number of threads used to compute the inclusion. Default is 1.
+     */
+    private int threads;
+    /**
+     * The name of the inclusion cache file. The empty string disables 
+     * the cache.
+     */
+    private String inclusionCacheFile;
+
+    /**
+     * Incremented on each change of the filter configuration. Used to 
+     * invalidate cached filter results.
+     */
+    private volatile int filterGeneration;
+
+    /**
+     * The compiled tag configuration. Recompiled, if the filter 
+     * configuration changes.
+     */
+    private volatile TagEvaluator tagEvaluator;
+
+    /**
+     * The persistent inclusion cache or <code>null</code>.
+     */
+    private volatile InclusionCache inclusionCache;
+
+    /**
+     * The inclusion state of the filtered items.
+     */
+    private final InclusionStore inclusionStore = new InclusionStore();
+
     /**
      * Create a new instance
      */
@@ -149,6 +200,7 @@ public class PublishedApiDoclet extends FilterDocletBase {
 	 */
 	public final void setDefaultIsExclude(boolean defaultIsExclude) {
 		this.defaultIsExclude = defaultIsExclude;
+		filterConfigurationChanged();
 	}
 
 	/**
@@ -163,6 +215,7 @@ public class PublishedApiDoclet extends FilterDocletBase {
 	 */
 	public final void setDefaultPriority(int defaultPriority) {
 		this.defaultPriority = defaultPriority;
+		filterConfigurationChanged();
 	}
 
 	/**
@@ -177,6 +230,7 @@ public class PublishedApiDoclet extends FilterDocletBase {
 	 */
 	public final void setDisableJavadocFilter(boolean disableJavadocFilter) {
 		this.disableJavadocFilter = disableJavadocFilter;
+		filterConfigurationChanged();
 	}
 
 	/**
@@ -195,6 +249,7 @@ public class PublishedApiDoclet extends FilterDocletBase {
 	 */
 	public final void setExcludeChildsFilter(String excludeChildsFilter) {
 		this.excludeChildsFilter = Pattern.compile(excludeChildsFilter);
+		filterConfigurationChanged();
 	}
 
 	/**
@@ -209,6 +264,7 @@ public class PublishedApiDoclet extends FilterDocletBase {
 	 */
 	public final void setExcludeChildsTag(String excludeChildsTag) {
 		this.excludeChildsTag = excludeChildsTag;
+		filterConfigurationChanged();
 	}
 
 	/**
@@ -226,6 +282,7 @@ public class PublishedApiDoclet extends FilterDocletBase {
 	 */
 	public final void setExcludeFilter(String excludeFilter) {
 		this.excludeFilter = Pattern.compile(excludeFilter);
+		filterConfigurationChanged();
 	}
 
 	/**
@@ -243,6 +300,7 @@ public class PublishedApiDoclet extends FilterDocletBase {
 	 */
 	public final void setForceIncludeFilter(String forceIncludeFilter) {
 		this.forceIncludeFilter = Pattern.compile(forceIncludeFilter);
+		filterConfigurationChanged();
 	}
 
 	/**
@@ -257,6 +315,7 @@ public class PublishedApiDoclet extends FilterDocletBase {
 	 */
 	public final void setForceIncludeTag(String forceIncludeTag) {
 		this.forceIncludeTag = forceIncludeTag;
+		filterConfigurationChanged();
 	}
 
 	/**
@@ -271,6 +330,7 @@ public class PublishedApiDoclet extends FilterDocletBase {
 	 */
 	public final void setIgnoreJavadocIsIncluded(boolean ignoreJavadocIsIncluded) {
 		this.ignoreJavadocIsIncluded = ignoreJavadocIsIncluded;
+		filterConfigurationChanged();
 	}
 
 	/**
@@ -288,6 +348,7 @@ public class PublishedApiDoclet extends FilterDocletBase {
 	 */
 	public final void setIncludeFilter(String includeFilter) {
 		this.includeFilter = Pattern.compile(includeFilter);
+		filterConfigurationChanged();
 	}
 
 	/**
@@ -301,6 +362,7 @@ public class PublishedApiDoclet extends FilterDocletBase {
      */
     public final void setExcludeTag(String excludeTag) {
         this.excludeTag = excludeTag;
+        filterConfigurationChanged();
     }
     /**
      * @return Returns the includeTag.
@@ -313,6 +375,7 @@ public class PublishedApiDoclet extends FilterDocletBase {
      */
     public final void setIncludeTag(String includeTag) {
         this.includeTag = includeTag;
+        filterConfigurationChanged();
     }
 	/**
 	 * @return the dontFilterAnnotationElements
@@ -327,6 +390,49 @@ public class PublishedApiDoclet extends FilterDocletBase {
 	public final void setDontFilterAnnotationElements(
 			boolean dontFilterAnnotationElements) {
 		this.dontFilterAnnotationElements = dontFilterAnnotationElements;
+		filterConfigurationChanged();
+	}
+
+	/**
+	 * @return the eagerInclusion
+	 */
+	public final boolean isEagerInclusion() {
+		return eagerInclusion;
+	}
+
+	/**
+	 * @param eagerInclusion the eagerInclusion to set
+	 */
+	public final void setEagerInclusion(boolean eagerInclusion) {
+		this.eagerInclusion = eagerInclusion;
+	}
+
+	/**
+	 * @return the threads
+	 */
+	public final int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param threads the threads to set
+	 */
+	public final void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * @return the inclusionCacheFile
+	 */
+	public final String getInclusionCacheFile() {
+		return inclusionCacheFile;
+	}
+
+	/**
+	 * @param inclusionCacheFile the inclusionCacheFile to set
+	 */
+	public final void setInclusionCacheFile(String inclusionCacheFile) {
+		this.inclusionCacheFile = inclusionCacheFile;
 	}
 
 	/**
@@ -341,6 +447,58 @@ public class PublishedApiDoclet extends FilterDocletBase {
 	 */
 	public final void setDontFilterEnumConstants(boolean dontFilterEnumConstants) {
 		this.dontFilterEnumConstants = dontFilterEnumConstants;
+		filterConfigurationChanged();
+	}
+
+	/**
+	 * Invalidate all cached filter results.
+	 */
+	private void filterConfigurationChanged() {
+		filterGeneration++;
+	}
+
+	/**
+	 * @return the current generation of the filter configuration.
+	 */
+	final int getFilterGeneration() {
+		return filterGeneration;
+	}
+
+	/**
+	 * Get the compiled tag configuration.
+	 * 
+	 * @return the tag evaluator for the current filter configuration.
+	 */
+	final TagEvaluator getTagEvaluator() {
+		TagEvaluator evaluator = this.tagEvaluator;
+		if (evaluator == null || evaluator.generation != filterGeneration) {
+			evaluator = new TagEvaluator(this);
+			this.tagEvaluator = evaluator;
+		}
+		return evaluator;
+	}
+
+	/**
+	 * Get a hash of all settings, that influence the inclusion priorities.
+	 * 
+	 * @return the hash
+	 * @see InclusionCache
+	 */
+	final long getFilterConfigurationHash() {
+		StringBuffer sb = new StringBuffer();
+		sb.append(getIncludeTag()).append('\0').append(getIncludeFilterPat().pattern()).append('\0');
+		sb.append(getExcludeTag()).append('\0').append(getExcludeFilterPat().pattern()).append('\0');
+		sb.append(getExcludeChildsTag()).append('\0').append(getExcludeChildsFilterPat().pattern()).append('\0');
+		sb.append(getForceIncludeTag()).append('\0').append(getForceIncludeFilterPat().pattern()).append('\0');
+		sb.append(isDefaultIsExclude()).append('\0').append(getDefaultPriority());
+		return InclusionCache.hash(sb.toString());
+	}
+
+	/**
+	 * @return the inclusion cache or <code>null</code>, if the cache is disabled.
+	 */
+	final InclusionCache getInclusionCache() {
+		return inclusionCache;
 	}
 
     
@@ -386,6 +544,14 @@ public class PublishedApiDoclet extends FilterDocletBase {
     		Option.register(new Option("IgnoreJavadocIsIncluded","Do not call the javadoc isIncluded method."));
     		Option.register(new Option("DontFilterEnumConstants","Do not filter enum constants. (Enum constants are always included.)"));
     		Option.register(new Option("DontFilterAnnotationElements","Do not filter annotation elements. (Annotations elements are always included.)"));
+    		Option.register(new Option("EagerInclusion","Compute the inclusion of all packages, classes and members top down"+Option.LI
+    				+"in a separate phase, before the delegate doclet starts."));
+    		Option.register(new Option("Threads","1",false,"The number of threads used to compute the inclusion. A value greater"+Option.LI
+    				+"than 1 and the option "+Option.namePrefix+"ParallelDelegates imply "+Option.namePrefix+"EagerInclusion."));
+    		Option.register(new Option("InclusionCacheFile","",false,"The name of a file used to store the inclusion priorities for the next run."+Option.LI
+    				+"The stored priorities of an item are used, if its source file is unchanged. The file is"+Option.LI
+    				+"ignored, if the filter options change. A second file with the suffix \""+InclusionCache.ALTERNATE_SUFFIX+"\" is"+Option.LI
+    				+"used alternately. The empty string disables the cache."));
 		   	// make sure RefCheckDoclet is loaded and static initializers were execuded
 		   	new RefCheckDoclet();
 		   	AbstractOption option = RefCheckDoclet.Option.get(RefCheckDoclet.OPTION_WARN_ON);
@@ -422,10 +588,9 @@ public class PublishedApiDoclet extends FilterDocletBase {
             DocErrorReporter reporter) throws java.io.IOException {
     	boolean showHelp = false;
     	
-    	// init the options, because we need the DefaultPriority option
-    	Option.initOptions(options);    	
+    	// compile the options, because we need the DefaultPriority option
     	try{
-    		Integer.parseInt(Option.get("DefaultPriority").value);
+    		Option.compile(options).getInt("DefaultPriority");
     	} catch (NumberFormatException e) {
 			reporter.printError("Option "+Option.namePrefix+"DefaultPriority"+" requires an integer argument" );
 			showHelp = true;
@@ -455,30 +620,76 @@ public class PublishedApiDoclet extends FilterDocletBase {
      * @see com.sun.javadoc.Doclet#start(com.sun.javadoc.RootDoc)
      */
     public static boolean start(RootDoc root) throws java.io.IOException {
-        // process our options: set the default for the filter options
-        Option.initOptions(root.options()); // first pass: we need FilterDefault
-        Option.get("ExcludeFilter").value = 
-        	Option.get("ExcludeChildsFilter").value =
-        		Option.get("IncludeFilter").value =
-        			Option.get("ForceIncludeFilter").value 
-        			= Option.get("FilterDefault").value;
-        
         // create the filter doclet instance
         FilterDocletBase fd = new PublishedApiDoclet();
         // delegate the work to the helper method
         return startHelper(root,fd);
     }
 
+    /**
+     * Compile the options and set the default values of the filter options.
+     * 
+     * The default of the filter options is the value of the 
+     * option <code>FilterDefault</code>.
+     * 
+     * @param options the options
+     * @return the compiled options
+     */
+    protected OptionSnapshot compileOptions(String[][] options) {
+    	// first pass: we need FilterDefault
+    	String filterDefault = Option.compile(options).getString("FilterDefault");
+    	Map<String, String> defaults = new HashMap<String, String>();
+    	defaults.put("ExcludeFilter", filterDefault);
+    	defaults.put("ExcludeChildsFilter", filterDefault);
+    	defaults.put("IncludeFilter", filterDefault);
+    	defaults.put("ForceIncludeFilter", filterDefault);
+    	return Option.compile(options, defaults);
+    }
+
+    /**
+     * Create an instance, that is configured by the given options, 
+     * but doesn't filter a root doc. Used by tools, that evaluate 
+     * the pad tags without a javadoc run.
+     * 
+     * @param options the options
+     * @return the new instance
+     * @throws Throwable if an option value is invalid
+     * @see SourcePreScanner
+     */
+    static PublishedApiDoclet createConfiguredInstance(String[][] options) throws Throwable {
+        PublishedApiDoclet pad = new PublishedApiDoclet();
+        pad.configure(options);
+        return pad;
+    }
+
 	/* (non-Javadoc)
 	 * @see de.kruis.padoclet.FilterDocletBase#preDelegateStartHook(com.sun.javadoc.RootDoc)
 	 */
 	protected void preDelegateStartHook(RootDoc filteredRootDoc) {
+		if (getInclusionCacheFile().length() > 0) {
+			try {
+				this.inclusionCache = new InclusionCache(new File(getInclusionCacheFile()), getFilterConfigurationHash());
+			} catch (IOException e) {
+				this.getErrorReporter().printWarning("Can't read the inclusion cache: "+e);
+			}
+		}
+		if (isEagerInclusion() || getThreads() > 1 || isConcurrentDelegates()) {
+			InvocationHandlerWithTarget handler = HalfDynamicProxy.getInvocationHandler(filteredRootDoc);
+			if (handler instanceof RootDocHandler) {
+				long start = System.currentTimeMillis();
+				int count = ((RootDocHandler) handler).computeInclusion(getThreads());
+				long time = System.currentTimeMillis()-start;
+				int included = inclusionStore.select(InclusionStore.INCLUDED).cardinality();
+				this.getErrorReporter().printNotice("Computed the inclusion of "+count
+						+" items in "+time+" ms, "+included+" items are included");
+			}
+		}
 		// the following lines are mor or less a copy of 
 		// RefCheckDoclet#start()
-		if (Option.get(RefCheckDoclet.OPTION_WARN_ON).value.length() > 0) {
+		if (getOptions().getString(RefCheckDoclet.OPTION_WARN_ON).length() > 0) {
 			RefCheckDoclet rcd = new RefCheckDoclet();
 			try {
-				Option.initJavaBeanProperties(rcd);
+				getOptions().applyTo(rcd);
 			} catch (Throwable e) {
 				e.printStackTrace();
 				this.getErrorReporter().printError(e.toString());
@@ -489,6 +700,23 @@ public class PublishedApiDoclet extends FilterDocletBase {
 		}
 	}
 
+	/* (non-Javadoc)
+	 * @see de.kruis.padoclet.FilterDocletBase#postDelegateStartHook(com.sun.javadoc.RootDoc)
+	 */
+	protected void postDelegateStartHook(RootDoc filteredRootDoc) {
+		InclusionCache cache = this.inclusionCache;
+		if (cache == null)
+			return;
+		this.inclusionCache = null;
+		try {
+			cache.save();
+			this.getErrorReporter().printNotice("Inclusion cache: "+cache.getHits()+" hits, "
+					+cache.getMisses()+" misses");
+		} catch (IOException e) {
+			this.getErrorReporter().printWarning("Can't write the inclusion cache: "+e);
+		}
+	}
+
     /**
      * A main method.
      * 
@@ -502,9 +730,10 @@ public class PublishedApiDoclet extends FilterDocletBase {
         Main.execute(name, name, args);
     }
 
-    // initialize the proxy class table
-	static { 
-		HalfDynamicProxy.setProxyClassTable(
+    /**
+     * the proxy class table of the PublishedApiDoclet
+     */
+	private static final Class<?>[][] PROXY_CLASS_TABLE = 
 				new Class[][] {
 				// 1st entry: handler class, 2nd and up: interfaces required to match
 				// the interfaces are part of the com.sun.javadoc
@@ -521,57 +750,479 @@ public class PublishedApiDoclet extends FilterDocletBase {
 				new Class[] { HandlerBase.class, Tag.class},
 				new Class[] { HandlerBase.class, Type.class},
 				new Class[] { HandlerBase.class, Parameter.class},
-		}
-		);
+		};
+
+	/* (non-Javadoc)
+	 * @see de.kruis.padoclet.FilterDocletBase#getProxyClassTable()
+	 */
+	protected Class<?>[][] getProxyClassTable() {
+		return PROXY_CLASS_TABLE;
 	}
 	
 	
 	/**
-	 * Proxy methods and state common to all {@link Doc} instances.
+	 * Computes the priorities of the inclusion related tags of a doc node.
+	 * 
+	 * <p>
+	 * The names and filter patterns of the include, exclude, excludeChilds 
+	 * and forceInclude tags are compiled once. The evaluator 
+	 * looks at each tag of a node once and computes all four priorities 
+	 * together. The priority of a tag depends on its text only, therefore it
+	 * is remembered per distinct text. 
+	 * </p>
+	 * <p>
+	 * If a node does not contain a matching tag, its priority is 
+	 * 0. Otherwise the priority is at least 1. If the first portion of the 
+	 * tag text, that matches the filter, contains a decimal number, the number 
+	 * is the priority. If the portion contains a second number, the maximum of
+	 * both numbers is used. (For compatibility with older versions, the second 
+	 * number is ignored, if the first number is not on the first line of the
+	 * portion. In this case the priority is at least 1.) If a node contains 
+	 * several matching tags, the maximum priority is used.
+	 * </p>
 	 * 
 	 * @author kruis
 	 */
-	public static class DocHandler extends ComparableHandler {
+	static final class TagEvaluator {
+		/*
+		 * the indices of the priorities
+		 */
+		static final int INCLUDE = 0;
+		static final int EXCLUDE = 1;
+		static final int EXCLUDE_CHILDS = 2;
+		static final int FORCE_INCLUDE = 3;
+		
+		/**
+		 * the generation of the filter configuration used to compile 
+		 * this evaluator.
+		 */
+		final int generation;
+		
+		/**
+		 * maps the tag kinds (i.e. <code>@pad.exclude</code>) to the indices 
+		 * of the priorities, that use the tag.
+		 */
+		private final Map<String, int[]> kinds = new HashMap<String, int[]>();
+		
+		/**
+		 * the filter patterns, indexed like the priorities
+		 */
+		private final Pattern[] filters = new Pattern[4];
+		
+		/**
+		 * the remembered priorities of the tag texts, indexed like the priorities
+		 */
+		private final Map<String, Integer>[] memo;
+		
+		/**
+		 * the javadoc filter flag used to get the child lists
+		 * @see DocHandler#isFilter(boolean)
+		 */
+		private final boolean filterChilds;
+		/**
+		 * copy of {@link PublishedApiDoclet#isDontFilterEnumConstants()}
+		 */
+		private final boolean dontFilterEnumConstants;
+		/**
+		 * copy of {@link PublishedApiDoclet#isDontFilterAnnotationElements()}
+		 */
+		private final boolean dontFilterAnnotationElements;
+		
+		/**
+		 * the remembered results of {@link #getDescendantIncludePriority(Doc)}
+		 */
+		private final Map<Doc, Integer> descendantPriorities = 
+			Collections.synchronizedMap(new IdentityHashMap<Doc, Integer>());
+		
+		/**
+		 * Compile the tag configuration.
+		 * 
+		 * @param pad the doclet, that holds the configuration.
+		 */
+		@SuppressWarnings("unchecked")
+		TagEvaluator(PublishedApiDoclet pad) {
+			this.generation = pad.getFilterGeneration();
+			this.memo = (Map<String, Integer>[]) new Map<?, ?>[filters.length];
+			add(INCLUDE, pad.getIncludeTag(), pad.getIncludeFilterPat());
+			add(EXCLUDE, pad.getExcludeTag(), pad.getExcludeFilterPat());
+			add(EXCLUDE_CHILDS, pad.getExcludeChildsTag(), pad.getExcludeChildsFilterPat());
+			add(FORCE_INCLUDE, pad.getForceIncludeTag(), pad.getForceIncludeFilterPat());
+			this.filterChilds = ! pad.isDisableJavadocFilter();
+			this.dontFilterEnumConstants = pad.isDontFilterEnumConstants();
+			this.dontFilterAnnotationElements = pad.isDontFilterAnnotationElements();
+		}
+		
+		/**
+		 * Add the configuration of a single priority.
+		 * 
+		 * @param index the index of the priority
+		 * @param tag the tag names, separated by {@link Option#TAG_DELIMITER}.
+		 * @param filter the filter pattern
+		 */
+		private void add(int index, String tag, Pattern filter) {
+			filters[index] = filter;
+			memo[index] = new ConcurrentHashMap<String, Integer>();
+			if (tag == null || tag.length() == 0)
+				return;
+			StringTokenizer tokenizer = new StringTokenizer(tag,Option.TAG_DELIMITER);
+			while(tokenizer.hasMoreTokens()) {
+				// the same normalization as used by Doc.tags(String)
+				String kind = tokenizer.nextToken();
+				if (kind.charAt(0) != '@')
+					kind = "@" + kind;
+				int[] indices = kinds.get(kind);
+				if (indices == null) {
+					kinds.put(kind, new int[] { index });
+				} else if (!contains(indices, index)) {
+					int[] indices2 = new int[indices.length + 1];
+					System.arraycopy(indices, 0, indices2, 0, indices.length);
+					indices2[indices.length] = index;
+					kinds.put(kind, indices2);
+				}
+			}
+		}
+		
+		/**
+		 * @param array an array
+		 * @param value a value
+		 * @return <code>true</code>, if array contains value.
+		 */
+		private static boolean contains(int[] array, int value) {
+			for (int i = 0; i < array.length; i++) {
+				if (array[i] == value)
+					return true;
+			}
+			return false;
+		}
+		
+		/**
+		 * Compute the priorities for a doc node.
+		 * 
+		 * @param doc the document node (package, class, method, field, ...)
+		 * @return the priorities, indexed by {@link #INCLUDE}, {@link #EXCLUDE},
+		 * {@link #EXCLUDE_CHILDS} and {@link #FORCE_INCLUDE}. 
+		 */
+		int[] evaluate(Doc doc) {
+			int[] priorities = new int[filters.length];
+			if (kinds.isEmpty())
+				return priorities;
+			Tag[] tags = doc.tags();
+			for (int i = 0; i < tags.length; i++) {
+				evaluate(tags[i].kind(), tags[i].text(), priorities);
+			}
+			return priorities;
+		}
+
+		/**
+		 * Add the priorities of a single tag.
+		 * 
+		 * @param kind the kind of the tag, i.e. <code>@pad.exclude</code>
+		 * @param text the text of the tag
+		 * @param priorities the priorities. Each priority is set to the 
+		 * maximum of its old value and the priority of the tag.
+		 */
+		void evaluate(String kind, String text, int[] priorities) {
+			int[] indices = kinds.get(kind);
+			if (indices == null)
+				return;
+			if (text == null)
+				text=""; // I'm paranoid
+			for (int j = 0; j < indices.length; j++) {
+				int p = priority(indices[j], text);
+				// we need the maximum value
+				if (priorities[indices[j]] < p)
+					priorities[indices[j]] = p;
+			}
+		}
+		
+		/**
+		 * Compute an inclusion priority from the tag priorities of an item.
+		 * 
+		 * @param tagPriorities the priorities of the tags of the item, 
+		 * see {@link #evaluate(Doc)}
+		 * @param parentPriority the inclusion priority for the childs of 
+		 * the parent item or the default priority.
+		 * @param forChilds if <code>true</code>, compute the inclusion 
+		 * priority for the childs of the item, otherwise compute the 
+		 * inclusion priority of the item itself.
+		 * @return the inclusion priority. A negative value means "exclude".
+		 */
+		static int inclusionPriority(int[] tagPriorities, int parentPriority, boolean forChilds) {
+			int includePriority = tagPriorities[INCLUDE];
+			int excludePriority = tagPriorities[EXCLUDE];
+			if (forChilds) {
+				// the exclude childs priority must be at least as high 
+				// as the exclude priority, because we do not want childs
+				// to be included, and the local node included
+				excludePriority = Math.max(excludePriority, tagPriorities[EXCLUDE_CHILDS]);
+			}
+			int priority = includePriority;
+			if (excludePriority > includePriority) {
+				priority = -excludePriority;
+			}
+			if (Math.abs(parentPriority) > Math.abs(priority)) {
+				priority = parentPriority;
+			}
+			return priority;
+		}
+
+		/**
+		 * Get the highest include priority of all descendants of a 
+		 * package or class.
+		 * 
+		 * The descendants are the items, that the filtered child lists of
+		 * the container and of its nested classes may contain. If none 
+		 * of them has an include priority greater or equal to the 
+		 * negative child inclusion priority of the container, all 
+		 * descendants are excluded. Descendants, that might be included 
+		 * regardless of their priority, count as {@link Integer#MAX_VALUE}.
+		 * 
+		 * @param container the (unwrapped) package or class
+		 * @return the highest include priority
+		 */
+		int getDescendantIncludePriority(Doc container) {
+			Integer cached = descendantPriorities.get(container);
+			if (cached != null)
+				return cached.intValue();
+			int max = 0;
+			try {
+				if (container instanceof PackageDoc) {
+					ClassDoc[] classes = ((PackageDoc) container).allClasses(filterChilds);
+					for (int i = 0; i < classes.length && max < Integer.MAX_VALUE; i++) {
+						max = Math.max(max, getSubtreeIncludePriority(classes[i]));
+					}
+				} else if (container instanceof ClassDoc) {
+					ClassDoc cd = (ClassDoc) container;
+					max = getIncludePriority(cd.constructors(filterChilds), max);
+					max = getIncludePriority(cd.methods(filterChilds), max);
+					max = getIncludePriority(cd.fields(filterChilds), max);
+					FieldDoc[] enumConstants = cd.enumConstants();
+					if (dontFilterEnumConstants && enumConstants.length > 0)
+						// inclusion of an enum class is required
+						max = Integer.MAX_VALUE;
+					max = getIncludePriority(enumConstants, max);
+					if (cd instanceof AnnotationTypeDoc) {
+						AnnotationTypeElementDoc[] elements = ((AnnotationTypeDoc) cd).elements();
+						if (dontFilterAnnotationElements && elements.length > 0)
+							max = Integer.MAX_VALUE;
+						max = getIncludePriority(elements, max);
+					}
+					ClassDoc[] innerClasses = cd.innerClasses(filterChilds);
+					for (int i = 0; i < innerClasses.length && max < Integer.MAX_VALUE; i++) {
+						max = Math.max(max, getSubtreeIncludePriority(innerClasses[i]));
+					}
+				}
+			} catch (NumberFormatException e) {
+				// let the regular evaluation report the problem
+				max = Integer.MAX_VALUE;
+			}
+			descendantPriorities.put(container, new Integer(max));
+			return max;
+		}
+
+		/**
+		 * @param cd a class
+		 * @return the highest include priority of the class and its descendants
+		 */
+		private int getSubtreeIncludePriority(ClassDoc cd) {
+			int max = getIncludePriority(cd);
+			if (max < Integer.MAX_VALUE)
+				max = Math.max(max, getDescendantIncludePriority(cd));
+			return max;
+		}
+
+		/**
+		 * @param docs some items
+		 * @param max the priority found so far
+		 * @return the maximum of <code>max</code> and the include priorities 
+		 * of the items
+		 */
+		private int getIncludePriority(Doc[] docs, int max) {
+			for (int i = 0; i < docs.length && max < Integer.MAX_VALUE; i++) {
+				max = Math.max(max, getIncludePriority(docs[i]));
+			}
+			return max;
+		}
 
+		/**
+		 * @param doc an item
+		 * @return the include priority of the item or 
+		 * {@link Integer#MAX_VALUE}, if the item has a forceInclude tag.
+		 */
+		private int getIncludePriority(Doc doc) {
+			int[] priorities = evaluate(doc);
+			if (priorities[FORCE_INCLUDE] > 0)
+				return Integer.MAX_VALUE;
+			return priorities[INCLUDE];
+		}
 
 		/**
-		 * The value of this field is only valid, if {@link #isIncludedValid} 
-		 * is <code>true</code>.
-		 * Then this field determinates, if the Doc instance is included.
+		 * Get the priority of a tag text.
+		 * 
+		 * @param index the index of the priority
+		 * @param text the text of the tag
+		 * @return the priority
 		 */
-		private boolean isIncluded;
+		private int priority(int index, String text) {
+			Integer p = memo[index].get(text);
+			if (p == null) {
+				p = Integer.valueOf(computePriority(filters[index], text));
+				memo[index].put(text, p);
+			}
+			return p.intValue();
+		}
 		
 		/**
-		 * if <code>true</code>, the inclusion state is known and
-		 * {@link #isIncluded} is valid
+		 * Compute the priority of a tag text.
+		 * 
+		 * @param filter the filter pattern
+		 * @param text the text of the tag
+		 * @return the priority: 0, if the filter does not match, otherwise
+		 * the decimal number(s) from the matched portion or 1.
 		 */
-		private boolean isIncludedValid = false;
+		static int computePriority(Pattern filter, String text) {
+			Matcher matcher = filter.matcher(text);
+			if (!matcher.find())
+				return 0;
+			int end = matcher.end();
+			// find the first number
+			int i = matcher.start();
+			boolean isFirstLine = true;
+			while (i < end && !isDigit(text.charAt(i))) {
+				if (isLineTerminator(text.charAt(i)))
+					isFirstLine = false;
+				i++;
+			}
+			if (i >= end)
+				return 1;
+			int start = i;
+			while (i < end && isDigit(text.charAt(i)))
+				i++;
+			int p = parseDecimal(text, start, i);
+			if (! isFirstLine) {
+				// compatible with the regular expression based implementation
+				// used up to now.
+				return Math.max(1, p);
+			}
+			// a second number
+			while (i < end && !isDigit(text.charAt(i)))
+				i++;
+			if (i < end) {
+				start = i;
+				while (i < end && isDigit(text.charAt(i)))
+					i++;
+				int p2 = parseDecimal(text, start, i);
+				if (p < p2)
+					p = p2;
+			}
+			return p;
+		}
 		
 		/**
-		 * Flag, that is used to avoid infinite recursion. May be obsolete.
+		 * @param c a character
+		 * @return <code>true</code>, if c is an ASCII digit (like \d in a regular expression).
 		 */
-		private boolean isCheckStarted = false;
+		private static boolean isDigit(char c) {
+			return c >= '0' && c <= '9';
+		}
 		
 		/**
-		 * Cached inclusion priority for this node. 
-		 * Only valid, if {@link #inclusionPriorityValid} is <code>true</code>.
+		 * @param c a character
+		 * @return <code>true</code>, if c is a line terminator (a character 
+		 * not matched by . in a regular expression).
 		 */
-		private int inclusionPriority = 0;
+		private static boolean isLineTerminator(char c) {
+			return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+		}
+		
 		/**
-		 * Cached inclusion priority for childs of this node. 
-		 * Only valid, if {@link #inclusionPriorityValid} is <code>true</code>.
+		 * Parse a non negative decimal number without creating a string.
+		 * 
+		 * @param s the text, that contains the number 
+		 * @param start the index of the first digit
+		 * @param end the index after the last digit
+		 * @return the value
+		 * @throws NumberFormatException if the value does not fit into an int.
 		 */
-		private int childInclusionPriority = 0;
+		private static int parseDecimal(String s, int start, int end) {
+			int value = 0;
+			for (int i = start; i < end; i++) {
+				int digit = s.charAt(i) - '0';
+				if (value > (Integer.MAX_VALUE - digit) / 10)
+					throw new NumberFormatException("For input string: \"" + s.substring(start, end) + "\"");
+				value = value * 10 + digit;
+			}
+			return value;
+		}
+	}
+	
+	/**
+	 * Proxy methods and state common to all {@link Doc} instances.
+	 * 
+	 * The results of the accessors named by the {@link HalfDynamicProxy.PureMethods} 
+	 * annotation are computed once per proxy.
+	 * 
+	 * @author kruis
+	 */
+	@HalfDynamicProxy.PureMethods({ "name", "qualifiedName", "commentText", "getRawCommentText",
+		"tags", "inlineTags", "firstSentenceTags", "seeTags", "modifiers", "modifierSpecifier",
+		"signature", "flatSignature", "typeName", "qualifiedTypeName", "simpleTypeName" })
+	public static class DocHandler extends ComparableHandler {
+
+
+		/**
+		 * The id of this item in the {@link InclusionStore} of the doclet
+		 * or -1, if the id is not yet allocated. The store holds the 
+		 * <i>included</i> property and the inclusion priorities.
+		 * The priorities do not depend on the order of evaluation, 
+		 * therefore concurrent computations are harmless.
+		 */
+		private volatile int id = -1;
+
 		/**
-		 * Indicates, if {@link #inclusionPriority} and {@link #childInclusionPriority} is
-		 * valid.
+		 * The priorities of the inclusion related tags. Computed on demand.
+		 * @see #getTagPriorities()
 		 */
-		private boolean inclusionPriorityValid = false;
+		private volatile int[] tagPriorities;
 		
+		/**
+		 * Holds the cached results of {@link #filterDocArray(Doc[], Class, boolean)} 
+		 * together with the generation of the filter configuration.
+		 */
+		private static final class FilteredArrays {
+			final int generation;
+			final Doc[][] arrays;
+
+			FilteredArrays(int generation, Doc[][] arrays) {
+				this.generation = generation;
+				this.arrays = arrays;
+			}
+		}
+
+		/**
+		 * The cached filtered arrays. Indexed by a slot number, see 
+		 * {@link #getFilteredArray(int, boolean)}. 
+		 */
+		private volatile FilteredArrays filteredArrays;
+
 		/**
 		 * Create a new instance.
 		 */
 		public DocHandler() {}
+
+		/**
+		 * Set the raw comment text and forget the remembered results of the
+		 * pure methods, because most of them depend on the comment.
+		 * 
+		 * @param rawDocumentation the new documentation
+		 * @see com.sun.javadoc.Doc#setRawCommentText(java.lang.String)
+		 */
+		public void setRawCommentText(String rawDocumentation) {
+			clearMemo();
+			synchronized (getTargetLock()) {
+				((Doc) target).setRawCommentText(rawDocumentation);
+			}
+		}
 		
 		/**
 		 * Get the value of the boolean <i>included</i> property of the Doc 
@@ -588,19 +1239,88 @@ public class PublishedApiDoclet extends FilterDocletBase {
 		public boolean isIncluded() {
 			// if the cached result is valid, there is no need to recompute the 
 			//  result of this method.
-			if (isIncludedValid)
+			int flags = getInclusionStore().getFlags(getId());
+			if ((flags & InclusionStore.INCLUDED_VALID) != 0)
 				// the result is already known. Nothing to do.
-				return isIncluded;
+				return (flags & InclusionStore.INCLUDED) != 0;
+			return computeIsIncluded();
+		}
+
+		/**
+		 * @return the inclusion store of the doclet
+		 */
+		private InclusionStore getInclusionStore() {
+			return ((PublishedApiDoclet) getHDPStateUserObject()).inclusionStore;
+		}
+
+		/**
+		 * Get the id of this item. Allocates the id on the first call.
+		 * 
+		 * @return the id of this item in the {@link InclusionStore}.
+		 */
+		private int getId() {
+			int id = this.id;
+			if (id < 0)
+				id = allocateId();
+			return id;
+		}
+
+		/**
+		 * Allocate the id of this item, unless another thread did it.
+		 * 
+		 * @return the id
+		 */
+		private synchronized int allocateId() {
+			if (this.id < 0)
+				this.id = getInclusionStore().newId();
+			return this.id;
+		}
+
+		/**
+		 * @return <code>true</code>, if the <i>included</i> property of this 
+		 * item is already known.
+		 */
+		private boolean isIncludedValid() {
+			return (getInclusionStore().getFlags(getId()) & InclusionStore.INCLUDED_VALID) != 0;
+		}
+
+		/**
+		 * @return <code>true</code>, if the inclusion priorities of this 
+		 * item are already known.
+		 */
+		private boolean isInclusionPriorityValid() {
+			return (getInclusionStore().getFlags(getId()) & InclusionStore.PRIORITY_VALID) != 0;
+		}
+
+		/**
+		 * Compute the value of the <i>included</i> property.
+		 * 
+		 * The method is synchronized, because it must not run concurrently 
+		 * for the same item. The computation locks the containing item 
+		 * before its childs (package, class, member), therefore 
+		 * concurrent calls can't dead lock.
+		 * 
+		 * @return the value of the <i>included</i> property.
+		 * @see #isIncluded()
+		 */
+		private synchronized boolean computeIsIncluded() {
+			InclusionStore store = getInclusionStore();
+			int id = getId();
+			int flags = store.getFlags(id);
+			if ((flags & InclusionStore.INCLUDED_VALID) != 0)
+				// another thread computed the result
+				return (flags & InclusionStore.INCLUDED) != 0;
 			
 			// we probably do not need this check, but during development it proved 
 			// to be useful. 
-			if (isCheckStarted)
+			if ((flags & InclusionStore.CHECK_STARTED) != 0)
 				throw new IllegalStateException("unexpected recursion detected");
 			
+			boolean isIncluded = false;
 			// start of try{ }finally
 			try {
 				// anti recursion flag.
-				this.isCheckStarted = true;
+				store.setFlags(id, InclusionStore.CHECK_STARTED);
 				
 				// get the state object and the target of this proxy
 				PublishedApiDoclet pad = (PublishedApiDoclet) getHDPStateUserObject();
@@ -609,25 +1329,28 @@ public class PublishedApiDoclet extends FilterDocletBase {
 				// determinate, if the target is to be included in the 
 				// documentation: Include it, if either 
 				// 
-				this.isIncluded = pad.isIgnoreJavadocIsIncluded() // the global flag says so
-					|| doc.isIncluded()  // the javadoc framework says so
+				isIncluded = pad.isIgnoreJavadocIsIncluded() // the global flag says so
+					|| isTargetIncluded()  // the javadoc framework says so
 					|| // the "forceInclude"-tag of the target says so 
-					   tagPriority(doc,pad.getForceIncludeTag(),pad.getForceIncludeFilterPat()) > 0;
+					   getTagPriorities()[TagEvaluator.FORCE_INCLUDE] > 0;
 
 			    // if we already know, that the target is not to be included,
 			    // we are ready.
-				if (! this.isIncluded)
+				if (! isIncluded)
 					return false;
 
 				// check the current target node and its parent nodes. 
-				this.isIncluded = this.calcInclusionPriority(false) >= 0 ;
+				isIncluded = this.calcInclusionPriority(false) >= 0 ;
 				
 				// if the default is "exclude", check, if the
 				// inclusion of just this target node is required,
 				// because one of the child elements is included
-				if (! this.isIncluded) {
+				if (! isIncluded) {
 					boolean inclusionRequired = false;
-					if (doc instanceof PackageDoc) {
+					if ((flags & InclusionStore.CHILD_INDEX_COMPLETE) != 0) {
+						// all relevant childs are already known
+						inclusionRequired = store.getIncludedChildCount(id) > 0;
+					} else if (doc instanceof PackageDoc) {
 						// nested nodes are classes, therefore check, if the 
 						// package contains any classes to be documented
 						PackageDoc pd = (PackageDoc) dynamicProxyInstance();
@@ -647,64 +1370,96 @@ public class PublishedApiDoclet extends FilterDocletBase {
 					}
 					if (inclusionRequired) {
 						debug("detected required inclusion of: "+doc.toString());
-						this.isIncluded = true;
+						isIncluded = true;
 					}
 				}	        
-				return this.isIncluded;
+				return isIncluded;
 			} finally {
-				// mark the value of this.isIncluded as valid.
-				this.isIncludedValid = true;
+				// store the value of isIncluded and mark it as valid.
+				store.setFlags(id, isIncluded ? 
+						InclusionStore.INCLUDED | InclusionStore.INCLUDED_VALID : InclusionStore.INCLUDED_VALID);
+				if (isIncluded)
+					store.countIncludedChild(id);
 			}			
 		}
 
 		/**
-		 * A constant used by {@link #tagPriority(Doc, String, Pattern)}.
+		 * @return the <i>included</i> property of the proxy target.
 		 */
-		private static final Pattern digits = Pattern.compile(".*?(\\d+)");
+		private boolean isTargetIncluded() {
+			synchronized (getTargetLock()) {
+				return ((Doc) target).isIncluded();
+			}
+		}
+
 		/**
-		 * Get the priority from a tag.
+		 * Register a container, that checks the <i>included</i> property of 
+		 * this item in order to find out, if its own inclusion is required.
 		 * 
-		 * If the doc-node does not contain a matching tag, the result is 
-		 * 0. Otherwise the result is at least 1. If one or more matched portions of the 
-		 * tag end with a decimal number the maximum of these numbers is returned. 
+		 * @param container the container (a class or package).
+		 */
+		private synchronized void addContainer(DocHandler container) {
+			InclusionStore store = getInclusionStore();
+			int flags = store.getFlags(getId());
+			if ((flags & InclusionStore.INCLUDED_VALID) != 0) {
+				if ((flags & InclusionStore.INCLUDED) != 0)
+					store.addIncludedChilds(container.getId(), 1);
+				return;
+			}
+			store.addContainer(getId(), container.getId());
+		}
+
+		/**
+		 * Register this item as container of the given childs.
 		 * 
-		 * @param doc the document node (package, class, method, field, ...)
-		 * @param tag the name of the tag
-		 * @param filter a filter pattern. Only tags, that match this pattern are
-		 * looked at.
-		 * @return the priority asiciated with the tag: a non negative integer. 0 is the 
-		 * minimum priority.
+		 * @param childs the (unwrapped) childs
+		 * @param filter if <code>false</code>, the childs are not filtered, 
+		 * therefore every child counts as included.
 		 */
-		private static int tagPriority(Doc doc, String tag, Pattern filter) {
-			if (tag == null || tag.length() == 0)
-				return 0;
-			StringTokenizer tokenizer = new StringTokenizer(tag,Option.TAG_DELIMITER);
-			int prio = 0;
-			Tag[] tags;
-			while(tokenizer.hasMoreTokens()) {
-				tags = doc.tags(tokenizer.nextToken());
-				int p;
-				for(int i=0;i<tags.length;i++) {
-					String text = tags[i].text();
-					if (text == null)
-						text=""; // I'm paranoid
-					Matcher matcher = filter.matcher(text);
-					while(matcher.find()) {
-						// the tag matches, now get its priority
-						p = 1;
-						// now try to get the priority from the matched 
-						matcher = digits.matcher(matcher.group());
-						if (matcher.lookingAt()) {
-							// the tag has an encoded priority
-							p = Integer.parseInt(matcher.group(1));
+		private void addChilds(Doc[] childs, boolean filter) {
+			if (! filter) {
+				getInclusionStore().addIncludedChilds(getId(), childs.length);
+				return;
+			}
+			for (int i = 0; i < childs.length; i++) {
+				InvocationHandlerWithTarget handler = HalfDynamicProxy.getInvocationHandler(getHDPProxy(childs[i], Doc.class));
+				if (handler instanceof DocHandler)
+					((DocHandler) handler).addContainer(this);
+			}
+		}
+
+		/**
+		 * Get the priorities of the inclusion related tags of this item.
+		 * 
+		 * @return the priorities, indexed by {@link TagEvaluator#INCLUDE}, 
+		 * {@link TagEvaluator#EXCLUDE}, {@link TagEvaluator#EXCLUDE_CHILDS} and
+		 * {@link TagEvaluator#FORCE_INCLUDE}.
+		 */
+		private int[] getTagPriorities() {
+			int[] priorities = this.tagPriorities;
+			if (priorities == null) {
+				PublishedApiDoclet pad = (PublishedApiDoclet) getHDPStateUserObject();
+				InclusionCache cache = pad.getInclusionCache();
+				// the cache and the evaluator read the tags of the target
+				synchronized (getTargetLock()) {
+					if (cache != null) {
+						// the cached values start with the tag priorities
+						priorities = cache.lookup((Doc) getInvocationTarget());
+					}
+					if (priorities == null) {
+						priorities = pad.getTagEvaluator().evaluate((Doc) getInvocationTarget());
+						if (cache != null) {
+							// keep the tag priorities, even if the inclusion 
+							// priority is not needed 
+							recordInclusionPriority(cache, priorities, InclusionCache.UNKNOWN_PRIORITY, 0, 0);
 						}
-						// we need the maximum value
-						if (prio < p)
-							prio = p;
+					} else {
+						cache.record((Doc) getInvocationTarget(), priorities);
 					}
 				}
+				this.tagPriorities = priorities;
 			}
-			return prio;
+			return priorities;
 		}
 		
 		/**
@@ -718,65 +1473,123 @@ public class PublishedApiDoclet extends FilterDocletBase {
 		 * (return value is negative) priority. 
 		 */
 		private int calcInclusionPriority(boolean iscallFromChild) {
-			if (this.inclusionPriorityValid)
-				return iscallFromChild ? this.childInclusionPriority : this.inclusionPriority;
-			try {
-				Doc doc = (Doc) dynamicProxyInstance();
+			if (! isInclusionPriorityValid()) {
 				PublishedApiDoclet pad = (PublishedApiDoclet) getHDPStateUserObject();
-				int includePriority = tagPriority(doc,pad.getIncludeTag(),pad.getIncludeFilterPat());
-				int excludePriority = tagPriority(doc,pad.getExcludeTag(),pad.getExcludeFilterPat());
-				int excludeChildsPriority = tagPriority(doc,pad.getExcludeChildsTag(),pad.getExcludeChildsFilterPat());
-				if (excludePriority > excludeChildsPriority) {
-					// the exclude childs priority must be at least as high 
-					// as the exclude priority, because we do not want childs
-					// to be included, and the local node included
-					excludeChildsPriority = excludePriority;
-				}
-				
 				int parentPriority = (pad.isDefaultIsExclude()?-1:1)*
 						pad.getDefaultPriority();
 				// ---- ask the parent, if possible ----
-					
-				Doc doc2 = null; // holds the parent
-				// get the parent
-				if (doc instanceof ProgramElementDoc) {
-					ProgramElementDoc member = (ProgramElementDoc) doc;
-					doc2 = member.containingClass();
-					if (doc2 == null) {
-						doc2 = member.containingPackage();
-					}
-				}
-				// is parent valid?
-				if (doc2 instanceof Proxy && 
-						Proxy.getInvocationHandler(doc2) instanceof DocHandler) {
-					// doc2 is the parent
-					parentPriority = ((DocHandler)Proxy.getInvocationHandler(doc2)).calcInclusionPriority(true);
-				}
-				
-				// now do the calculation for the local inclusion prio
-				this.inclusionPriority = includePriority;
-				if (excludePriority > includePriority) {
-					this.inclusionPriority = -excludePriority;
+				DocHandler parentHandler = getParentHandler();
+				if (parentHandler != null) {
+					parentPriority = parentHandler.calcInclusionPriority(true);
 				}
-				if (Math.abs(parentPriority) > Math.abs(this.inclusionPriority)) {
-					this.inclusionPriority = parentPriority;
+				setInclusionPriority(parentPriority);
+			}
+			return getInclusionStore().getPriority(getId(), iscallFromChild);
+		}
+
+		/**
+		 * Get the handler of the parent item.
+		 * 
+		 * @return the handler of the containing class or package or 
+		 * <code>null</code>, if this item has no parent.
+		 */
+		private DocHandler getParentHandler() {
+			Doc doc = (Doc) dynamicProxyInstance();
+			Doc doc2 = null; // holds the parent
+			// get the parent
+			if (doc instanceof ProgramElementDoc) {
+				ProgramElementDoc member = (ProgramElementDoc) doc;
+				doc2 = member.containingClass();
+				if (doc2 == null) {
+					doc2 = member.containingPackage();
 				}
-				// now do the calculation for the child inclusion prio
-				this.childInclusionPriority = includePriority;
-				if (excludeChildsPriority > includePriority) {
-					this.childInclusionPriority = -excludeChildsPriority;
+			}
+			// is parent valid?
+			InvocationHandlerWithTarget parentHandler = HalfDynamicProxy.getInvocationHandler(doc2);
+			if (parentHandler instanceof DocHandler) {
+				// doc2 is the parent
+				return (DocHandler) parentHandler;
+			}
+			return null;
+		}
+
+		/**
+		 * Compute the inclusion priorities of this item.
+		 * 
+		 * @param parentPriority the inclusion priority for the childs of 
+		 * the parent item or the default priority.
+		 */
+		private void setInclusionPriority(int parentPriority) {
+			InclusionStore store = getInclusionStore();
+			int id = getId();
+			try {
+				int[] tagPriorities = getTagPriorities();
+				int priority;
+				int childPriority;
+				if (tagPriorities.length == InclusionCache.VALUE_COUNT 
+						&& tagPriorities[InclusionCache.PARENT_PRIORITY] == parentPriority) {
+					// cached by a previous run 
+					priority = tagPriorities[InclusionCache.PRIORITY];
+					childPriority = tagPriorities[InclusionCache.CHILD_PRIORITY];
+				} else {
+					priority = TagEvaluator.inclusionPriority(tagPriorities, parentPriority, false);
+					childPriority = TagEvaluator.inclusionPriority(tagPriorities, parentPriority, true);
 				}
-				if (Math.abs(parentPriority) > Math.abs(this.childInclusionPriority)) {
-					this.childInclusionPriority = parentPriority;
+				PublishedApiDoclet pad = (PublishedApiDoclet) getHDPStateUserObject();
+				InclusionCache cache = pad.getInclusionCache();
+				if (cache != null) {
+					recordInclusionPriority(cache, tagPriorities, parentPriority, priority, childPriority);
 				}
-				
-				return iscallFromChild ? 
-						this.childInclusionPriority : this.inclusionPriority;
+				// Store the final values only. Other threads might read 
+				// the values, if another thread computed them concurrently.
+				store.setPriorities(id, priority, childPriority);
 			} finally {
-				this.inclusionPriorityValid = true;
+				store.setFlags(id, InclusionStore.PRIORITY_VALID);
 			}
 		}
 				
+		/**
+		 * Store the priorities of this item in the inclusion cache.
+		 * 
+		 * @param cache the inclusion cache
+		 * @param tagPriorities the tag priorities
+		 * @param parentPriority the inclusion priority for the childs of the parent item
+		 * @param priority the inclusion priority of this item
+		 * @param childPriority the inclusion priority for the childs of this item
+		 */
+		private void recordInclusionPriority(InclusionCache cache, int[] tagPriorities, 
+				int parentPriority, int priority, int childPriority) {
+			int[] values = new int[InclusionCache.VALUE_COUNT];
+			System.arraycopy(tagPriorities, 0, values, 0, TagEvaluator.FORCE_INCLUDE + 1);
+			values[InclusionCache.PARENT_PRIORITY] = parentPriority;
+			values[InclusionCache.PRIORITY] = priority;
+			values[InclusionCache.CHILD_PRIORITY] = childPriority;
+			synchronized (getTargetLock()) {
+				cache.record((Doc) getInvocationTarget(), values);
+			}
+		}
+
+		/**
+		 * Compute the inclusion priorities of this item, if the 
+		 * inclusion priority of the parent item is already known. 
+		 * Used by {@link RootDocHandler#computeInclusion(int)}.
+		 * 
+		 * @param defaultPriority the default priority
+		 */
+		private void presetInclusionPriority(int defaultPriority) {
+			if (isInclusionPriorityValid())
+				return;
+			DocHandler parentHandler = getParentHandler();
+			if (parentHandler == null) {
+				setInclusionPriority(defaultPriority);
+			} else if (parentHandler.isInclusionPriorityValid()) {
+				setInclusionPriority(parentHandler.calcInclusionPriority(true));
+			} else {
+				// the parent was not part of the walk
+				calcInclusionPriority(false);
+			}
+		}
+
 		/**
 		 * Filter the content of a com.sun.javadoc.Doc-array, in order to remove entries not to be documented.
 		 * 
@@ -804,9 +1617,63 @@ public class PublishedApiDoclet extends FilterDocletBase {
 				}
 				list.add(entry);
 			}
+			if (list.isEmpty())
+				return (Doc[]) getEmptyArray(componentType);
 			return (Doc[]) list.toArray((Object[]) Array.newInstance(componentType,list.size()));
 		}
 
+		/**
+		 * Get a cached filtered array.
+		 * 
+		 * @param slot identifies the method, that computed the array.
+		 * @param filter the filter flag used to compute the array.
+		 * @return a copy of the cached array or <code>null</code>, if the array 
+		 * is not cached or if the filter configuration changed.
+		 * @see #putFilteredArray(int, boolean, Doc[])
+		 */
+		protected Doc[] getFilteredArray(int slot, boolean filter) {
+			FilteredArrays cache = this.filteredArrays;
+			if (cache == null)
+				return null;
+			PublishedApiDoclet pad = (PublishedApiDoclet) getHDPStateUserObject();
+			int index = 2 * slot + (filter ? 1 : 0);
+			if (cache.generation != pad.getFilterGeneration() || index >= cache.arrays.length)
+				return null;
+			Doc[] array = cache.arrays[index];
+			if (array == null || array.length == 0)
+				return array;
+			// the caller might modify the array
+			return array.clone();
+		}
+
+		/**
+		 * Cache a filtered array.
+		 * 
+		 * @param slot identifies the method, that computed the array.
+		 * Each handler class uses small consecutive numbers for its methods.
+		 * @param filter the filter flag used to compute the array.
+		 * @param array the filtered array
+		 * @return the array. The cache holds a copy.
+		 * @see #getFilteredArray(int, boolean)
+		 */
+		protected synchronized Doc[] putFilteredArray(int slot, boolean filter, Doc[] array) {
+			PublishedApiDoclet pad = (PublishedApiDoclet) getHDPStateUserObject();
+			int generation = pad.getFilterGeneration();
+			int index = 2 * slot + (filter ? 1 : 0);
+			FilteredArrays cache = this.filteredArrays;
+			Doc[][] arrays;
+			if (cache == null || cache.generation != generation) {
+				arrays = new Doc[index + 1][];
+			} else {
+				// copy on write
+				arrays = new Doc[Math.max(index + 1, cache.arrays.length)][];
+				System.arraycopy(cache.arrays, 0, arrays, 0, cache.arrays.length);
+			}
+			arrays[index] = array.length == 0 ? array : array.clone();
+			this.filteredArrays = new FilteredArrays(generation, arrays);
+			return array;
+		}
+
 		/**
 		 * Determinate, if a com.sun.javadoc.Doc array shall be filtered.
 		 * 
@@ -821,11 +1688,48 @@ public class PublishedApiDoclet extends FilterDocletBase {
 			return ! pad.isDisableJavadocFilter();
 		}
 
+		/**
+		 * Check, if all childs of this package or class and their 
+		 * descendants are excluded. This is the case, if the 
+		 * child inclusion priority is negative and no descendant has an
+		 * include tag with a sufficient priority or a forceInclude tag.
+		 * 
+		 * @return <code>true</code>, if no descendant can be included.
+		 */
+		protected boolean isChildsExcluded() {
+			int priority = calcInclusionPriority(true);
+			if (priority >= 0)
+				return false;
+			PublishedApiDoclet pad = (PublishedApiDoclet) getHDPStateUserObject();
+			synchronized (getTargetLock()) {
+				return pad.getTagEvaluator().getDescendantIncludePriority((Doc) target) < -priority;
+			}
+		}
+
+		/**
+		 * Filter an array of childs of this item. Works like 
+		 * {@link #filterDocArray(Doc[], Class, boolean)}, but skips 
+		 * the evaluation of the childs, if {@link #isChildsExcluded()}.
+		 * 
+		 * @param array the (unwrapped) childs
+		 * @param expect the expected array type
+		 * @param doFilter if <code>false</code>, don't filter
+		 * @return the filtered array of proxies
+		 */
+		protected Doc[] filterChildArray(Doc[] array, Class<? extends Doc[]> expect, boolean doFilter) {
+			if (doFilter && array.length > 0 && isChildsExcluded())
+				return (Doc[]) getEmptyArray(expect.getComponentType());
+			return filterDocArray(array, expect, doFilter);
+		}
+
 		/* (non-Javadoc)
 		 * @see de.kruis.padoclet.FilterDocletBase.HandlerBase#debug(java.lang.String)
 		 */
 		protected void debug(String message) {
-			SourcePosition position = ((Doc)(this.getInvocationTarget())).position();
+			SourcePosition position;
+			synchronized (getTargetLock()) {
+				position = ((Doc)(this.getInvocationTarget())).position();
+			}
 			FilterDocletBase pad = (FilterDocletBase) getHDPStateUserObject();
 			pad.getErrorReporter().printNotice(position,message);
 		}
@@ -847,7 +1751,10 @@ public class PublishedApiDoclet extends FilterDocletBase {
 		 * @see MethodDoc#overrides(MethodDoc)
 		 */
 		public boolean overrides(MethodDoc meth) {
-			return ((MethodDoc)target).overrides((MethodDoc) unwrap(meth));
+			MethodDoc other = (MethodDoc) unwrap(meth);
+			synchronized (getTargetLock()) {
+				return ((MethodDoc)target).overrides(other);
+			}
 		}
 	}
 
@@ -861,19 +1768,309 @@ public class PublishedApiDoclet extends FilterDocletBase {
 		 * Create a new instance.
 		 */
 		public RootDocHandler() {}
+
+		/**
+		 * the ids of the handlers already collected by {@link #computeInclusion(int)}
+		 */
+		private BitSet visited;
+
+		/**
+		 * Compute the inclusion of all packages, classes and members.
+		 * 
+		 * The items are processed top down: first the packages, then the
+		 * classes ordered by their nesting depth and finally the members. 
+		 * Therefore each item simply inherits the child inclusion priority 
+		 * of its parent, which is already known. Afterwards the 
+		 * <i>included</i> property is computed bottom up, because it 
+		 * may depend on the childs of an item. Each container counts its
+		 * included childs, therefore the check, if the inclusion of an 
+		 * excluded container is required, does not need to filter the 
+		 * childs again. Packages and classes, whose childs are excluded 
+		 * altogether, are not descended into.
+		 * <p>
+		 * If <code>threads</code> is greater than 1, the items of each 
+		 * step are processed by a pool of threads. The javadoc core is not
+		 * thread safe, therefore all calls, that make the javadoc core 
+		 * read sources or parse comments, happen in advance on the 
+		 * calling thread.
+		 * 
+		 * @param threads the number of threads to use.
+		 * @return the number of processed items.
+		 */
+		int computeInclusion(int threads) {
+			RootDoc root = (RootDoc) target;
+			PublishedApiDoclet pad = (PublishedApiDoclet) getHDPStateUserObject();
+			int defaultPriority = (pad.isDefaultIsExclude()?-1:1)*pad.getDefaultPriority();
+			visited = new BitSet();
+			// the containers are only needed to count the included childs
+			pad.inclusionStore.startContainerIndex();
+
+			// collect the packages and classes
+			List<DocHandler> packages = new ArrayList<DocHandler>();
+			List<List<DocHandler>> classesByDepth = new ArrayList<List<DocHandler>>();
+			PackageDoc[] specifiedPackages = root.specifiedPackages();
+			for (int i = 0; i < specifiedPackages.length; i++) {
+				addUnique(packages, getDocHandler(specifiedPackages[i]));
+			}
+			ClassDoc[] classes = root.classes();
+			for (int i = 0; i < classes.length; i++) {
+				DocHandler handler = getDocHandler(classes[i].containingPackage());
+				addUnique(packages, handler);
+				// skip the classes of packages without included classes
+				if (handler == null || ! handler.isChildsExcluded())
+					addClass(classesByDepth, classes[i]);
+			}
+			// the index of the included classes of each package
+			boolean filter = isFilter(true);
+			for (int i = 0; i < packages.size(); i++) {
+				DocHandler handler = packages.get(i);
+				if (handler.isChildsExcluded())
+					continue;
+				ClassDoc[] allClasses = ((PackageDoc) handler.getInvocationTarget()).allClasses(filter);
+				for (int j = 0; j < allClasses.length; j++) {
+					addClass(classesByDepth, allClasses[j]);
+				}
+				handler.addChilds(allClasses, true);
+			}
+
+			List<DocHandler> members = new ArrayList<DocHandler>();
+			for (int depth = 0; depth < classesByDepth.size(); depth++) {
+				List<DocHandler> list = classesByDepth.get(depth);
+				for (int i = 0; i < list.size(); i++) {
+					DocHandler handler = list.get(i);
+					ClassDoc cd = (ClassDoc) handler.getInvocationTarget();
+					if (handler.isChildsExcluded()) {
+						// skip the members, but count the unfiltered ones
+						if (pad.isDontFilterEnumConstants())
+							handler.addChilds(cd.enumConstants(), false);
+						if (pad.isDontFilterAnnotationElements() && cd instanceof AnnotationTypeDoc)
+							handler.addChilds(((AnnotationTypeDoc) cd).elements(), false);
+						continue;
+					}
+					addMembers(members, cd.constructors(false));
+					addMembers(members, cd.methods(false));
+					addMembers(members, cd.fields(false));
+					addMembers(members, cd.enumConstants());
+					// the index of the included members
+					handler.addChilds(cd.constructors(filter), true);
+					handler.addChilds(cd.methods(filter), true);
+					handler.addChilds(cd.fields(filter), true);
+					handler.addChilds(cd.enumConstants(), ! pad.isDontFilterEnumConstants());
+					if (cd instanceof AnnotationTypeDoc) {
+						AnnotationTypeElementDoc[] elements = ((AnnotationTypeDoc) cd).elements();
+						addMembers(members, elements);
+						handler.addChilds(elements, ! pad.isDontFilterAnnotationElements());
+					}
+				}
+			}
+
+			// the steps: inclusion priorities top down, 
+			// then the included property bottom up
+			List<List<DocHandler>> steps = new ArrayList<List<DocHandler>>();
+			steps.add(packages);
+			steps.addAll(classesByDepth);
+			steps.add(members);
+			int priorityStepCount = steps.size();
+			steps.add(members);
+			for (int depth = classesByDepth.size() - 1; depth >= 0; depth--) {
+				steps.add(classesByDepth.get(depth));
+			}
+			steps.add(packages);
+			
+			ExecutorService executor = null;
+			if (threads > 1) {
+				// let javadoc do its lazy work 
+				for (int i = 0; i < priorityStepCount; i++) {
+					List<DocHandler> list = steps.get(i);
+					for (int j = 0; j < list.size(); j++) {
+						Doc doc = (Doc) list.get(j).getInvocationTarget();
+						doc.tags();
+						doc.isIncluded();
+					}
+				}
+				executor = Executors.newFixedThreadPool(threads);
+			}
+			int count = 0;
+			try {
+				for (int i = 0; i < steps.size(); i++) {
+					boolean included = i >= priorityStepCount;
+					runStep(steps.get(i), included, defaultPriority, executor, threads);
+					if (included)
+						count += steps.get(i).size();
+					// now the included property of all members is known
+					if (i == priorityStepCount) {
+						for (int depth = 0; depth < classesByDepth.size(); depth++) {
+							setChildIndexComplete(classesByDepth.get(depth));
+						}
+					}
+					// now the included property of all classes is known
+					if (i == steps.size() - 2) {
+						setChildIndexComplete(packages);
+					}
+				}
+			} finally {
+				if (executor != null)
+					executor.shutdown();
+				pad.inclusionStore.endContainerIndex();
+			}
+			visited = null;
+			return count;
+		}
+
+		/**
+		 * Process the items of a step of {@link #computeInclusion(int)}.
+		 * 
+		 * @param list the handlers of the items
+		 * @param included if <code>true</code>, compute the <i>included</i>
+		 * property, otherwise compute the inclusion priority.
+		 * @param defaultPriority the default priority
+		 * @param executor the executor or <code>null</code>, to process the 
+		 * items on the current thread.
+		 * @param threads the number of threads of the executor
+		 */
+		private static void runStep(final List<DocHandler> list, final boolean included, 
+				final int defaultPriority, ExecutorService executor, int threads) {
+			if (executor == null || list.size() < 2) {
+				runStep(list, 0, list.size(), included, defaultPriority);
+				return;
+			}
+			// use a few chunks per thread to balance the load
+			int chunkSize = Math.max(1, list.size() / (threads * 4));
+			List<Future<Object>> futures = new ArrayList<Future<Object>>();
+			for (int start = 0; start < list.size(); start += chunkSize) {
+				final int from = start;
+				final int to = Math.min(list.size(), start + chunkSize);
+				futures.add(executor.submit(new Callable<Object>() {
+					public Object call() {
+						runStep(list, from, to, included, defaultPriority);
+						return null;
+					}
+				}));
+			}
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					futures.get(i).get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException)
+						throw (RuntimeException) cause;
+					if (cause instanceof Error)
+						throw (Error) cause;
+					throw new RuntimeException(cause);
+				}
+			}
+		}
+
+		/**
+		 * Process a range of items of a step of {@link #computeInclusion(int)}.
+		 * 
+		 * @param list the handlers of the items
+		 * @param from the first index (inclusive)
+		 * @param to the last index (exclusive)
+		 * @param included if <code>true</code>, compute the <i>included</i>
+		 * property, otherwise compute the inclusion priority.
+		 * @param defaultPriority the default priority
+		 */
+		private static void runStep(List<DocHandler> list, int from, int to, 
+				boolean included, int defaultPriority) {
+			for (int i = from; i < to; i++) {
+				if (included)
+					list.get(i).isIncluded();
+				else
+					list.get(i).presetInclusionPriority(defaultPriority);
+			}
+		}
+
+		/**
+		 * Add a class to the list of classes of its nesting depth.
+		 * 
+		 * @param classesByDepth the lists of classes, indexed by the nesting depth
+		 * @param cd the (unwrapped) class
+		 */
+		private void addClass(List<List<DocHandler>> classesByDepth, ClassDoc cd) {
+			int depth = 0;
+			for (ClassDoc c = cd.containingClass(); c != null; c = c.containingClass())
+				depth++;
+			while (classesByDepth.size() <= depth)
+				classesByDepth.add(new ArrayList<DocHandler>());
+			addUnique(classesByDepth.get(depth), getDocHandler(cd));
+		}
+
+		/**
+		 * Mark the index of included childs as complete. 
+		 * 
+		 * @param list the handlers of the containers
+		 */
+		private void setChildIndexComplete(List<DocHandler> list) {
+			InclusionStore store = ((PublishedApiDoclet) getHDPStateUserObject()).inclusionStore;
+			for (int i = 0; i < list.size(); i++) {
+				store.setFlags(list.get(i).getId(), InclusionStore.CHILD_INDEX_COMPLETE);
+			}
+		}
+
+		/**
+		 * Get the handler of a doc item.
+		 * 
+		 * @param doc the (unwrapped) doc item
+		 * @return the handler or <code>null</code>.
+		 */
+		private DocHandler getDocHandler(Doc doc) {
+			InvocationHandlerWithTarget handler = HalfDynamicProxy.getInvocationHandler(getHDPProxy(doc, Doc.class));
+			return handler instanceof DocHandler ? (DocHandler) handler : null;
+		}
+
+		/**
+		 * Add the handlers of the given members to a list.
+		 * 
+		 * @param list the list
+		 * @param docs the (unwrapped) members
+		 */
+		private void addMembers(List<DocHandler> list, Doc[] docs) {
+			for (int i = 0; i < docs.length; i++) {
+				addUnique(list, getDocHandler(docs[i]));
+			}
+		}
+
+		/**
+		 * Add a handler to a list, if the <i>included</i> property of the handler 
+		 * is not yet known and the handler was not added before.
+		 * 
+		 * @param list the list
+		 * @param handler the handler, may be <code>null</code>.
+		 */
+		private void addUnique(List<DocHandler> list, DocHandler handler) {
+			if (handler == null || handler.isIncludedValid())
+				return;
+			int id = handler.getId();
+			if (! visited.get(id)) {
+				visited.set(id);
+				list.add(handler);
+			}
+		}
 		
 		/* (non-Javadoc)
 		 * @see com.sun.javadoc.RootDoc#classes()
 		 */
 		public ClassDoc[] classes() {
-			return (ClassDoc[]) filterDocArray(((RootDoc)target).classes(),ClassDoc[].class,true);
+			ClassDoc[] classes;
+			synchronized (getTargetLock()) {
+				classes = ((RootDoc)target).classes();
+			}
+			return (ClassDoc[]) filterDocArray(classes,ClassDoc[].class,true);
 		}
 
 		/* (non-Javadoc)
 		 * @see com.sun.javadoc.RootDoc#options()
 		 */
 		public String[][] options() {
-			return filterOptions(((RootDoc)target).options());
+			String[][] options;
+			synchronized (getTargetLock()) {
+				options = ((RootDoc)target).options();
+			}
+			return filterOptions(options);
 		}
 		
 		/* (non-Javadoc)
@@ -881,7 +2078,11 @@ public class PublishedApiDoclet extends FilterDocletBase {
 		 */
 		public ClassDoc[] specifiedClasses() {
 			PublishedApiDoclet ds = (PublishedApiDoclet) getHDPStateUserObject();
-			return (ClassDoc[]) filterDocArray(((RootDoc)target).specifiedClasses() ,ClassDoc[].class, 
+			ClassDoc[] classes;
+			synchronized (getTargetLock()) {
+				classes = ((RootDoc)target).specifiedClasses();
+			}
+			return (ClassDoc[]) filterDocArray(classes ,ClassDoc[].class, 
 					! ds.isDisableJavadocFilter());
 		}
 
@@ -890,7 +2091,11 @@ public class PublishedApiDoclet extends FilterDocletBase {
 		 */
 		public PackageDoc[] specifiedPackages() {
 			PublishedApiDoclet ds = (PublishedApiDoclet) getHDPStateUserObject();
-			return (PackageDoc[]) filterDocArray(((RootDoc)target).specifiedPackages() ,PackageDoc[].class,
+			PackageDoc[] packages;
+			synchronized (getTargetLock()) {
+				packages = ((RootDoc)target).specifiedPackages();
+			}
+			return (PackageDoc[]) filterDocArray(packages ,PackageDoc[].class,
 					! ds.isDisableJavadocFilter());
 		}
 
@@ -902,6 +2107,19 @@ public class PublishedApiDoclet extends FilterDocletBase {
 	 * @author kruis
 	 */
 	public static class ClassDocHandler extends DocHandler {
+		/*
+		 * the slots of the cached filtered arrays
+		 */
+		private static final int CONSTRUCTORS = 0;
+		private static final int FIELDS = 1;
+		private static final int INNER_CLASSES = 2;
+		private static final int METHODS = 3;
+		private static final int ENUM_CONSTANTS = 4;
+		/**
+		 * the first slot available to subclasses
+		 */
+		protected static final int FIRST_FREE_SLOT = 5;
+
 		/**
 		 * Create a new instance.
 		 */
@@ -917,7 +2135,15 @@ public class PublishedApiDoclet extends FilterDocletBase {
 		 * @see com.sun.javadoc.ClassDoc#constructors(boolean)
 		 */
 		public ConstructorDoc[] constructors(boolean filter) {
-			return (ConstructorDoc[]) filterDocArray(((ClassDoc)target).constructors(isFilter(filter)) ,ConstructorDoc[] .class, filter);
+			Doc[] array = getFilteredArray(CONSTRUCTORS, filter);
+			if (array == null) {
+				ConstructorDoc[] childs;
+				synchronized (getTargetLock()) {
+					childs = ((ClassDoc)target).constructors(isFilter(filter));
+				}
+				array = putFilteredArray(CONSTRUCTORS, filter, filterChildArray(childs ,ConstructorDoc[] .class, filter));
+			}
+			return (ConstructorDoc[]) array;
 		}
 		/* (non-Javadoc)
 		 * @see com.sun.javadoc.ClassDoc#fields()
@@ -929,7 +2155,15 @@ public class PublishedApiDoclet extends FilterDocletBase {
 		 * @see com.sun.javadoc.ClassDoc#fields(boolean)
 		 */
 		public FieldDoc[] fields(boolean filter) {
-			return (FieldDoc[]) filterDocArray(((ClassDoc)target).fields(isFilter(filter)) ,FieldDoc[] .class, filter);
+			Doc[] array = getFilteredArray(FIELDS, filter);
+			if (array == null) {
+				FieldDoc[] childs;
+				synchronized (getTargetLock()) {
+					childs = ((ClassDoc)target).fields(isFilter(filter));
+				}
+				array = putFilteredArray(FIELDS, filter, filterChildArray(childs ,FieldDoc[] .class, filter));
+			}
+			return (FieldDoc[]) array;
 		}
 		/* (non-Javadoc)
 		 * @see com.sun.javadoc.ClassDoc#innerClasses()
@@ -941,7 +2175,15 @@ public class PublishedApiDoclet extends FilterDocletBase {
 		 * @see com.sun.javadoc.ClassDoc#innerClasses(boolean)
 		 */
 		public ClassDoc[] innerClasses(boolean filter) {
-			return (ClassDoc[]) filterDocArray(((ClassDoc)target).innerClasses(isFilter(filter)) ,ClassDoc[] .class, filter);
+			Doc[] array = getFilteredArray(INNER_CLASSES, filter);
+			if (array == null) {
+				ClassDoc[] childs;
+				synchronized (getTargetLock()) {
+					childs = ((ClassDoc)target).innerClasses(isFilter(filter));
+				}
+				array = putFilteredArray(INNER_CLASSES, filter, filterChildArray(childs ,ClassDoc[] .class, filter));
+			}
+			return (ClassDoc[]) array;
 		}
 		/* (non-Javadoc)
 		 * @see com.sun.javadoc.ClassDoc#methods()
@@ -953,13 +2195,24 @@ public class PublishedApiDoclet extends FilterDocletBase {
 		 * @see com.sun.javadoc.ClassDoc#methods(boolean)
 		 */
 		public MethodDoc[] methods(boolean filter) {
-			return (MethodDoc[]) filterDocArray(((ClassDoc)target).methods(isFilter(filter)) ,MethodDoc[] .class, filter);
+			Doc[] array = getFilteredArray(METHODS, filter);
+			if (array == null) {
+				MethodDoc[] childs;
+				synchronized (getTargetLock()) {
+					childs = ((ClassDoc)target).methods(isFilter(filter));
+				}
+				array = putFilteredArray(METHODS, filter, filterChildArray(childs ,MethodDoc[] .class, filter));
+			}
+			return (MethodDoc[]) array;
 		}
 		/* (non-Javadoc)
 		 * @see com.sun.javadoc.ClassDoc#subclassOf(com.sun.javadoc.ClassDoc)
 		 */
 		public boolean subclassOf(ClassDoc arg0) {
-			return ((ClassDoc)target).subclassOf((ClassDoc) unwrap(arg0));
+			ClassDoc other = (ClassDoc) unwrap(arg0);
+			synchronized (getTargetLock()) {
+				return ((ClassDoc)target).subclassOf(other);
+			}
 		}
 		
 		/*
@@ -967,7 +2220,16 @@ public class PublishedApiDoclet extends FilterDocletBase {
 		 */
 		public FieldDoc[] enumConstants() {
 			PublishedApiDoclet pad = (PublishedApiDoclet) getHDPStateUserObject();
-			return (FieldDoc[]) filterDocArray(((ClassDoc)target).enumConstants() ,FieldDoc[] .class, ! pad.isDontFilterEnumConstants());
+			boolean filter = ! pad.isDontFilterEnumConstants();
+			Doc[] array = getFilteredArray(ENUM_CONSTANTS, filter);
+			if (array == null) {
+				FieldDoc[] childs;
+				synchronized (getTargetLock()) {
+					childs = ((ClassDoc)target).enumConstants();
+				}
+				array = putFilteredArray(ENUM_CONSTANTS, filter, filterChildArray(childs ,FieldDoc[] .class, filter));
+			}
+			return (FieldDoc[]) array;
 		}
 	}	
 	
@@ -977,6 +2239,11 @@ public class PublishedApiDoclet extends FilterDocletBase {
 	 * @author kruis
 	 */
 	public static class AnnotationTypeDocHandler extends ClassDocHandler {
+		/**
+		 * the slot of the cached filtered elements
+		 */
+		private static final int ELEMENTS = FIRST_FREE_SLOT;
+
 		/**
 		 * Create a new instance.
 		 */
@@ -987,9 +2254,17 @@ public class PublishedApiDoclet extends FilterDocletBase {
 		 */
 		public AnnotationTypeElementDoc[] elements() {
 			PublishedApiDoclet pad = (PublishedApiDoclet) getHDPStateUserObject();
-			return (AnnotationTypeElementDoc[]) filterDocArray(
-					((AnnotationTypeDoc) target).elements(), AnnotationTypeElementDoc[].class,
-					!pad.isDontFilterAnnotationElements());
+			boolean filter = !pad.isDontFilterAnnotationElements();
+			Doc[] array = getFilteredArray(ELEMENTS, filter);
+			if (array == null) {
+				AnnotationTypeElementDoc[] childs;
+				synchronized (getTargetLock()) {
+					childs = ((AnnotationTypeDoc) target).elements();
+				}
+				array = putFilteredArray(ELEMENTS, filter, filterChildArray(
+						childs, AnnotationTypeElementDoc[].class, filter));
+			}
+			return (AnnotationTypeElementDoc[]) array;
 		}
 	}
 	
@@ -1009,8 +2284,10 @@ public class PublishedApiDoclet extends FilterDocletBase {
 		 */
 		public AnnotationDesc.ElementValuePair[] elementValues() {
 			PublishedApiDoclet pad = (PublishedApiDoclet) getHDPStateUserObject();
-			AnnotationDesc.ElementValuePair[] array = 
-				((AnnotationDesc)target).elementValues();
+			AnnotationDesc.ElementValuePair[] array;
+			synchronized (getTargetLock()) {
+				array = ((AnnotationDesc)target).elementValues();
+			}
 			
 			if (pad.isDontFilterAnnotationElements()) {
 				return (AnnotationDesc.ElementValuePair[]) getHDPProxy(array, AnnotationDesc.ElementValuePair[].class);
@@ -1025,6 +2302,8 @@ public class PublishedApiDoclet extends FilterDocletBase {
 				}
 				list.add(pair);
 			}
+			if (list.isEmpty())
+				return (AnnotationDesc.ElementValuePair[]) getEmptyArray(AnnotationDesc.ElementValuePair.class);
 			return list.toArray((AnnotationDesc.ElementValuePair[]) Array.newInstance(AnnotationDesc.ElementValuePair.class,list.size()));
 		}
 	}
@@ -1035,6 +2314,17 @@ public class PublishedApiDoclet extends FilterDocletBase {
 	 * @author kruis
 	 */
 	public static class PackageDocHandler extends DocHandler {
+		/*
+		 * the slots of the cached filtered arrays
+		 */
+		private static final int ALL_CLASSES = 0;
+		private static final int ERRORS = 1;
+		private static final int EXCEPTIONS = 2;
+		private static final int INTERFACES = 3;
+		private static final int ORDINARY_CLASSES = 4;
+		private static final int ENUMS = 5;
+		private static final int ANNOTATION_TYPES = 6;
+
 		/**
 		 * Create a new instance.
 		 */
@@ -1050,41 +2340,146 @@ public class PublishedApiDoclet extends FilterDocletBase {
 		 * @see com.sun.javadoc.PackageDoc#allClasses(boolean)
 		 */
 		public ClassDoc[] allClasses(boolean filter) {
-			return (ClassDoc[]) filterDocArray(((PackageDoc)target).allClasses(isFilter(filter)) ,ClassDoc[] .class, filter);
+			Doc[] array = getFilteredArray(ALL_CLASSES, filter);
+			if (array == null) {
+				if (isFilter(filter))
+					array = classifyClasses(ALL_CLASSES);
+				else {
+					ClassDoc[] classes;
+					synchronized (getTargetLock()) {
+						classes = ((PackageDoc)target).allClasses(false);
+					}
+					array = putFilteredArray(ALL_CLASSES, filter, 
+							filterChildArray(classes ,ClassDoc[] .class, filter));
+				}
+			}
+			return (ClassDoc[]) array;
 		}
 		/* (non-Javadoc)
 		 * @see com.sun.javadoc.PackageDoc#errors()
 		 */
 		public ClassDoc[] errors() {
-			return (ClassDoc[]) filterDocArray(((PackageDoc)target).errors() ,ClassDoc[] .class, true);
+			return (ClassDoc[]) getClassView(ERRORS);
 		}
 		/* (non-Javadoc)
 		 * @see com.sun.javadoc.PackageDoc#exceptions()
 		 */
 		public ClassDoc[] exceptions() {
-			return (ClassDoc[]) filterDocArray(((PackageDoc)target).exceptions() ,ClassDoc[] .class, true);
+			return (ClassDoc[]) getClassView(EXCEPTIONS);
 		}
 		/* (non-Javadoc)
 		 * @see com.sun.javadoc.PackageDoc#interfaces()
 		 */
 		public ClassDoc[] interfaces() {
-			return (ClassDoc[]) filterDocArray(((PackageDoc)target).interfaces() ,ClassDoc[] .class, true);
+			return (ClassDoc[]) getClassView(INTERFACES);
 		}
 		/* (non-Javadoc)
 		 * @see com.sun.javadoc.PackageDoc#ordinaryClasses()
 		 */
 		public ClassDoc[] ordinaryClasses() {
-			return (ClassDoc[]) filterDocArray(((PackageDoc)target).ordinaryClasses() ,ClassDoc[] .class, true);
+			return (ClassDoc[]) getClassView(ORDINARY_CLASSES);
 		}
 						
 		public ClassDoc[] enums() {
-			return (ClassDoc[]) filterDocArray(((PackageDoc)target).enums(), ClassDoc[].class, true);
+			return (ClassDoc[]) getClassView(ENUMS);
 		}
 		
 		public AnnotationTypeDoc[] annotationTypes() {
-			return (AnnotationTypeDoc[]) filterDocArray(((PackageDoc)target).annotationTypes(), AnnotationTypeDoc[].class, true);
+			return (AnnotationTypeDoc[]) getClassView(ANNOTATION_TYPES);
+		}
+
+		/**
+		 * Get one of the filtered class lists of this package.
+		 * 
+		 * @param slot the slot of the list
+		 * @return the filtered list.
+		 */
+		private Doc[] getClassView(int slot) {
+			Doc[] array = getFilteredArray(slot, true);
+			if (array == null)
+				array = classifyClasses(slot);
+			return array;
+		}
+
+		/**
+		 * Compute all filtered class lists of this package at once.
+		 * 
+		 * The javadoc core computes the lists {@link PackageDoc#errors()}, 
+		 * {@link PackageDoc#exceptions()} and so on from the included classes
+		 * of the package. This method fetches the included classes once, 
+		 * evaluates the inclusion of each class once and 
+		 * partitions the result into all lists. The lists are stored in 
+		 * the cache of filtered arrays.
+		 * 
+		 * @param slot the slot of the list to return.
+		 * @return the filtered list for <code>slot</code>.
+		 */
+		private Doc[] classifyClasses(int slot) {
+			ClassDoc[] classes;
+			synchronized (getTargetLock()) {
+				classes = ((PackageDoc)target).allClasses(true);
+			}
+			if (classes.length > 0 && isChildsExcluded())
+				classes = (ClassDoc[]) getEmptyArray(ClassDoc.class);
+			List<ClassDoc> all = new ArrayList<ClassDoc>(classes.length);
+			List<ClassDoc> errors = new ArrayList<ClassDoc>();
+			List<ClassDoc> exceptions = new ArrayList<ClassDoc>();
+			List<ClassDoc> interfaces = new ArrayList<ClassDoc>();
+			List<ClassDoc> ordinaryClasses = new ArrayList<ClassDoc>();
+			List<ClassDoc> enums = new ArrayList<ClassDoc>();
+			List<AnnotationTypeDoc> annotationTypes = new ArrayList<AnnotationTypeDoc>();
+			for (int i = 0; i < classes.length; i++) {
+				ClassDoc cd = classes[i];
+				ClassDoc entry = (ClassDoc) getHDPProxy(cd, ClassDoc.class);
+				if (entry != null && ! entry.isIncluded()) {
+					continue;
+				}
+				all.add(entry);
+				// use the same predicates as the javadoc core
+				synchronized (getTargetLock()) {
+					if (cd.isError())
+						errors.add(entry);
+					if (cd.isException())
+						exceptions.add(entry);
+					if (cd.isInterface())
+						interfaces.add(entry);
+					if (cd.isOrdinaryClass())
+						ordinaryClasses.add(entry);
+					if (cd.isEnum())
+						enums.add(entry);
+					if (cd.isAnnotationType())
+						annotationTypes.add((AnnotationTypeDoc) entry);
+				}
+			}
+			Doc[][] views = new Doc[ANNOTATION_TYPES + 1][];
+			views[ERRORS] = toArray(errors, ClassDoc.class);
+			views[EXCEPTIONS] = toArray(exceptions, ClassDoc.class);
+			views[INTERFACES] = toArray(interfaces, ClassDoc.class);
+			views[ORDINARY_CLASSES] = toArray(ordinaryClasses, ClassDoc.class);
+			views[ENUMS] = toArray(enums, ClassDoc.class);
+			views[ANNOTATION_TYPES] = toArray(annotationTypes, AnnotationTypeDoc.class);
+			for (int i = ERRORS; i < views.length; i++) {
+				putFilteredArray(i, true, views[i]);
+			}
+			if (isFilter(true)) {
+				// allClasses(true) uses the same source
+				views[ALL_CLASSES] = putFilteredArray(ALL_CLASSES, true, toArray(all, ClassDoc.class));
+			}
+			return views[slot];
+		}
+
+		/**
+		 * Convert a list into a typed array.
+		 * 
+		 * @param list the list
+		 * @param componentType the component type of the array
+		 * @return the array
+		 */
+		private static Doc[] toArray(List<? extends Doc> list, Class<?> componentType) {
+			if (list.isEmpty())
+				return (Doc[]) getEmptyArray(componentType);
+			return (Doc[]) list.toArray((Object[]) Array.newInstance(componentType, list.size()));
 		}
-		
 	}
 
 }
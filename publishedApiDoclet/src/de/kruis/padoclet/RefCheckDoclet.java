@@ -49,6 +49,7 @@ import com.sun.javadoc.Type;
 import com.sun.tools.javadoc.Main;
 
 import de.kruis.padoclet.util.AbstractOption;
+import de.kruis.padoclet.util.OptionSnapshot;
 
 /**
  * This doclet creates warnings for references to undocumented items.
@@ -634,9 +635,7 @@ public class RefCheckDoclet {
 			DocErrorReporter reporter) throws java.io.IOException {
 		boolean showHelp = false;
 
-		Option.initOptions(options);
-		AbstractOption helpOption = Option.get("Help");
-		if (helpOption != null && helpOption.isSet()) {
+		if (Option.compile(options).isSet("Help")) {
 			showHelp = true;
 		}
 		if (showHelp) {
@@ -662,9 +661,8 @@ public class RefCheckDoclet {
 		RefCheckDoclet rcd = new RefCheckDoclet();
 
 		// process our options
-		Option.initOptions(root.options());
 		try {
-			Option.initJavaBeanProperties(rcd);
+			Option.compile(root.options()).applyTo(rcd);
 		} catch (Throwable e) {
 			e.printStackTrace();
 			root.printError(e.toString());
@@ -750,6 +748,12 @@ public class RefCheckDoclet {
 		 */
 		private static Map<String, AbstractOption> options = new TreeMap<String, AbstractOption>();
 
+		/**
+		 * holds the snapshot compiled last or <code>null</code>. Guarded
+		 * by <code>Option.class</code>.
+		 */
+		private static OptionSnapshot snapshot;
+
 		/**
 		 * Register an option.
 		 * 
@@ -759,8 +763,27 @@ public class RefCheckDoclet {
 		 * @param option
 		 *            the option to register.
 		 */
-		public static void register(AbstractOption option) {
+		public static synchronized void register(AbstractOption option) {
 			register(option, options);
+			snapshot = null;
+		}
+
+		/**
+		 * Compile the options of a command line.
+		 * 
+		 * @param docletoptions
+		 *            the options as provided by the javadoc core.
+		 * @return the compiled options. Repeated calls with the same options
+		 *         return the same snapshot.
+		 * @see com.sun.javadoc.Doclet#validOptions(java.lang.String[][],
+		 *      com.sun.javadoc.DocErrorReporter)
+		 * @see com.sun.javadoc.RootDoc#options()
+		 */
+		public static synchronized OptionSnapshot compile(String[][] docletoptions) {
+			if (snapshot == null)
+				snapshot = new OptionSnapshot(options);
+			snapshot = snapshot.compile(docletoptions, null);
+			return snapshot;
 		}
 
 		/**
@@ -803,7 +826,13 @@ public class RefCheckDoclet {
 		 *         a parameter. If the option is unknown, return 0.
 		 */
 		public static int optionLength(String name) {
-			return optionLength(name, options);
+			OptionSnapshot s;
+			synchronized (Option.class) {
+				if (snapshot == null)
+					snapshot = new OptionSnapshot(options);
+				s = snapshot;
+			}
+			return s.optionLength(name);
 		}
 
 		/**
@@ -0,0 +1,589 @@
+/*
+ *  PublishedApiDoclet - a filter proxy for any javadoc doclet
+ *
+ *  Copyright (C) 2010  Anselm Kruis <a.kruis@science-computing.de>
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package de.kruis.padoclet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+
+import de.kruis.padoclet.FilterDocletBase.Option;
+import de.kruis.padoclet.PublishedApiDoclet.TagEvaluator;
+
+/**
+ * A fast pre-pass, that finds the packages and source files, that can't
+ * contain any published item.
+ *
+ * <p>
+ * The javadoc core parses every package it gets, even if the
+ * PublishedApiDoclet excludes the whole package later on. This class
+ * scans the source files and the <code>package.html</code> files with a
+ * simple lexer for the tags of the PublishedApiDoclet. It uses the same
+ * options (<code>-padExcludeTag</code>, <code>-padFilterDefault</code>,
+ * <code>-padDefaultIsExclude</code> and so on) and the same rules to compute
+ * the inclusion priorities. The result is the list of packages, that might
+ * contain documented items. Pass this list to javadoc (i.e. as
+ * <code>@argfile</code>) instead of the full list of packages.
+ * </p>
+ * <p>
+ * A package is omitted, if the package itself is excluded, the childs of
+ * the package are excluded and no comment within the package has a
+ * sufficient include priority or a forceInclude tag. With the option
+ * <code>-files</code> the scanner lists the source files of the remaining
+ * packages instead, and omits the files, whose top level classes are
+ * excluded in the same way. Note that javadoc doesn't document the
+ * packages, if it gets source files.
+ * </p>
+ * <p>
+ * The scanner is conservative: it never omits a package or file, that
+ * could contain an item included by the PublishedApiDoclet. The access
+ * modifiers are not evaluated. With <code>-padDisableJavadocFilter</code>
+ * nothing is omitted, because the PublishedApiDoclet then documents all
+ * specified packages. The warnings of <code>-padWarnOn</code> about
+ * references to items of omitted packages disappear, because javadoc
+ * has no source positions for them.
+ * </p>
+ *
+ * @author kruis
+ */
+public class SourcePreScanner {
+
+	/**
+	 * The scan result of a single source file.
+	 */
+	private static class ScannedFile {
+		/**
+		 * the file
+		 */
+		final File file;
+		/**
+		 * the tag priorities of the top level classes
+		 */
+		final List<int[]> types = new ArrayList<int[]>();
+		/**
+		 * the highest include priority of all other comments
+		 */
+		int otherIncludePriority = 0;
+		/**
+		 * the tag priorities of the package comment or <code>null</code>.
+		 */
+		int[] packageTags;
+
+		ScannedFile(File file) {
+			this.file = file;
+		}
+	}
+
+	/**
+	 * the configuration
+	 */
+	private final PublishedApiDoclet pad;
+
+	/**
+	 * the compiled tag configuration
+	 */
+	private final TagEvaluator evaluator;
+
+	/**
+	 * the encoding of the source files or <code>null</code>.
+	 */
+	private final String encoding;
+
+	/**
+	 * Create a new scanner.
+	 *
+	 * @param pad the configuration
+	 * @param encoding the encoding of the source files or <code>null</code>
+	 * for the default encoding.
+	 */
+	SourcePreScanner(PublishedApiDoclet pad, String encoding) {
+		this.pad = pad;
+		this.evaluator = pad.getTagEvaluator();
+		this.encoding = encoding;
+	}
+
+	/**
+	 * Check, if a package might contain published items.
+	 *
+	 * @param dirs the directories of the package
+	 * @param includedFiles if not <code>null</code>, the source files, that
+	 * might contain published items, are added to this list.
+	 * @return <code>true</code>, if the package might contain published items.
+	 * @throws IOException if a file can't be read
+	 */
+	boolean scanPackage(List<File> dirs, List<File> includedFiles) throws IOException {
+		List<ScannedFile> files = new ArrayList<ScannedFile>();
+		int[] packageTags = null;
+		for (int i = 0; i < dirs.size(); i++) {
+			File[] entries = dirs.get(i).listFiles();
+			if (entries == null)
+				continue;
+			Arrays.sort(entries);
+			for (int j = 0; j < entries.length; j++) {
+				String name = entries[j].getName();
+				if (! name.endsWith(".java") || ! entries[j].isFile())
+					continue;
+				ScannedFile scanned = new ScannedFile(entries[j]);
+				scanJava(read(entries[j]), scanned);
+				files.add(scanned);
+				if (name.equals("package-info.java") && scanned.packageTags != null)
+					packageTags = scanned.packageTags;
+			}
+			// package-info.java takes precedence over package.html
+			File html = new File(dirs.get(i), "package.html");
+			if (packageTags == null && html.isFile()) {
+				packageTags = evaluateComment(getBody(read(html)), false);
+			}
+		}
+		if (packageTags == null)
+			packageTags = new int[4];
+		int defaultPriority = (pad.isDefaultIsExclude()?-1:1)*pad.getDefaultPriority();
+		int priority = TagEvaluator.inclusionPriority(packageTags, defaultPriority, false);
+		int childPriority = TagEvaluator.inclusionPriority(packageTags, defaultPriority, true);
+
+		int includePriority = 0;
+		for (int i = 0; i < files.size(); i++) {
+			ScannedFile scanned = files.get(i);
+			includePriority = Math.max(includePriority, scanned.otherIncludePriority);
+			for (int j = 0; j < scanned.types.size(); j++) {
+				includePriority = Math.max(includePriority, getIncludePriority(scanned.types.get(j)));
+			}
+		}
+		// with DisableJavadocFilter the specified packages and classes
+		// are documented, even if they are excluded
+		boolean keepAll = pad.isDisableJavadocFilter();
+		if (! keepAll && priority < 0 && childPriority < 0 && includePriority < -childPriority)
+			// no item of this package can be included
+			return false;
+
+		if (includedFiles != null) {
+			for (int i = 0; i < files.size(); i++) {
+				ScannedFile scanned = files.get(i);
+				if (keepAll || isFileIncluded(scanned, childPriority))
+					includedFiles.add(scanned.file);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check, if a source file might contain published items.
+	 *
+	 * @param scanned the scanned file
+	 * @param packagePriority the child inclusion priority of the package
+	 * @return <code>true</code>, if the file might contain published items.
+	 */
+	private boolean isFileIncluded(ScannedFile scanned, int packagePriority) {
+		if (scanned.types.isEmpty())
+			// i.e. package-info.java
+			return true;
+		for (int i = 0; i < scanned.types.size(); i++) {
+			int[] tags = scanned.types.get(i);
+			int priority = TagEvaluator.inclusionPriority(tags, packagePriority, false);
+			int childPriority = TagEvaluator.inclusionPriority(tags, packagePriority, true);
+			if (priority >= 0 || childPriority >= 0)
+				return true;
+			// the other classes of the file count as descendants, to be on the safe side
+			int includePriority = scanned.otherIncludePriority;
+			for (int j = 0; j < scanned.types.size(); j++) {
+				if (j != i)
+					includePriority = Math.max(includePriority, getIncludePriority(scanned.types.get(j)));
+			}
+			if (includePriority >= -childPriority)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param tags tag priorities
+	 * @return the include priority or {@link Integer#MAX_VALUE}, if the
+	 * forceInclude priority is set.
+	 */
+	private static int getIncludePriority(int[] tags) {
+		if (tags[TagEvaluator.FORCE_INCLUDE] > 0)
+			return Integer.MAX_VALUE;
+		return tags[TagEvaluator.INCLUDE];
+	}
+
+	/**
+	 * Scan the source of a java file for doc comments.
+	 *
+	 * A doc comment at the top level, that precedes the keyword
+	 * <code>class</code>, <code>interface</code> or <code>enum</code>,
+	 * belongs to a top level class. A doc comment, that precedes
+	 * the keyword <code>package</code> is a package comment. All other
+	 * doc comments count as comments of descendants of the top level classes.
+	 *
+	 * @param src the source
+	 * @param result the scan result
+	 */
+	private void scanJava(String src, ScannedFile result) {
+		int depth = 0;
+		String pending = null; // the last top level doc comment
+		char previous = 0; // the previous significant character
+		int n = src.length();
+		int i = 0;
+		while (i < n) {
+			char c = src.charAt(i);
+			if (c == '/' && i + 1 < n && src.charAt(i + 1) == '/') {
+				// line comment
+				while (i < n && src.charAt(i) != '\n' && src.charAt(i) != '\r')
+					i++;
+				continue;
+			}
+			if (c == '/' && i + 1 < n && src.charAt(i + 1) == '*') {
+				int end = src.indexOf("*/", i + 2);
+				if (end < 0)
+					end = n;
+				if (i + 2 < end && src.charAt(i + 2) == '*') {
+					// a doc comment
+					String comment = src.substring(i + 3, end);
+					if (depth == 0) {
+						addOther(result, pending);
+						pending = comment;
+					} else {
+						addOther(result, comment);
+					}
+				}
+				i = Math.min(n, end + 2);
+				continue;
+			}
+			if (c == '"' || c == '\'') {
+				// a literal
+				i++;
+				while (i < n && src.charAt(i) != c) {
+					if (src.charAt(i) == '\\')
+						i++;
+					i++;
+				}
+				i++;
+				previous = c;
+				continue;
+			}
+			if (Character.isJavaIdentifierStart(c)) {
+				int start = i;
+				while (i < n && Character.isJavaIdentifierPart(src.charAt(i)))
+					i++;
+				String word = src.substring(start, i);
+				boolean isType = word.equals("class") || word.equals("interface") || word.equals("enum");
+				if (word.equals("enum") && pad.isDontFilterEnumConstants()
+						|| word.equals("interface") && previous == '@' && pad.isDontFilterAnnotationElements()) {
+					// unfiltered enum constants or annotation elements
+					// might require the inclusion of their class
+					result.otherIncludePriority = Integer.MAX_VALUE;
+				}
+				if (depth == 0 && isType && previous != '.') {
+					result.types.add(evaluateComment(pending, true));
+					pending = null;
+				} else if (depth == 0 && word.equals("package")) {
+					if (pending != null)
+						result.packageTags = evaluateComment(pending, true);
+					pending = null;
+				}
+				previous = 'a';
+				continue;
+			}
+			if (c == '{') {
+				depth++;
+			} else if (c == '}') {
+				depth--;
+			} else if (c == ';' && depth == 0) {
+				// end of an import statement or similar
+				addOther(result, pending);
+				pending = null;
+			}
+			if (! Character.isWhitespace(c))
+				previous = c;
+			i++;
+		}
+		addOther(result, pending);
+	}
+
+	/**
+	 * Add a doc comment, that doesn't belong to a top level class.
+	 *
+	 * @param result the scan result
+	 * @param comment the comment or <code>null</code>.
+	 */
+	private void addOther(ScannedFile result, String comment) {
+		if (comment == null)
+			return;
+		int[] tags = evaluateComment(comment, true);
+		result.otherIncludePriority = Math.max(result.otherIncludePriority, getIncludePriority(tags));
+	}
+
+	/**
+	 * Compute the priorities of the tags of a comment.
+	 *
+	 * The comment is split into block tags like the javadoc core does:
+	 * a tag starts with a <code>@</code> at the beginning of a line.
+	 *
+	 * @param comment the comment text or <code>null</code>.
+	 * @param stripStars if <code>true</code>, remove the leading white
+	 * space and stars from each line of the comment.
+	 * @return the tag priorities
+	 */
+	private int[] evaluateComment(String comment, boolean stripStars) {
+		int[] priorities = new int[4];
+		if (comment == null || comment.indexOf('@') < 0)
+			return priorities;
+		String kind = null;
+		StringBuffer text = new StringBuffer();
+		int n = comment.length();
+		int lineStart = 0;
+		while (lineStart <= n) {
+			int lineEnd = lineStart;
+			while (lineEnd < n && comment.charAt(lineEnd) != '\n' && comment.charAt(lineEnd) != '\r')
+				lineEnd++;
+			int pos = lineStart;
+			while (pos < lineEnd && isWhite(comment.charAt(pos)))
+				pos++;
+			if (stripStars) {
+				while (pos < lineEnd && comment.charAt(pos) == '*')
+					pos++;
+			}
+			String line = comment.substring(pos, lineEnd);
+			String trimmed = line.trim();
+			if (trimmed.startsWith("@")) {
+				// a new block tag
+				if (kind != null)
+					evaluator.evaluate(kind, text.toString().trim(), priorities);
+				int nameEnd = 0;
+				while (nameEnd < trimmed.length() && ! Character.isWhitespace(trimmed.charAt(nameEnd)))
+					nameEnd++;
+				kind = trimmed.substring(0, nameEnd);
+				text.setLength(0);
+				text.append(trimmed.substring(nameEnd));
+			} else if (kind != null) {
+				text.append('\n').append(line);
+			}
+			// skip the line terminator
+			if (lineEnd < n && comment.charAt(lineEnd) == '\r' && lineEnd + 1 < n && comment.charAt(lineEnd + 1) == '\n')
+				lineEnd++;
+			lineStart = lineEnd + 1;
+		}
+		if (kind != null)
+			evaluator.evaluate(kind, text.toString().trim(), priorities);
+		return priorities;
+	}
+
+	/**
+	 * @param c a character
+	 * @return <code>true</code>, if the javadoc core skips the character
+	 * at the beginning of a comment line.
+	 */
+	private static boolean isWhite(char c) {
+		return c == ' ' || c == '\t' || c == '\f';
+	}
+
+	/**
+	 * Get the content of the body element of a HTML file.
+	 *
+	 * @param html the html source
+	 * @return the body or the whole source, if there is no body element.
+	 */
+	private static String getBody(String html) {
+		String lower = html.toLowerCase();
+		int start = lower.indexOf("<body");
+		if (start < 0)
+			return html;
+		start = lower.indexOf('>', start);
+		if (start < 0)
+			return html;
+		int end = lower.indexOf("</body", start);
+		if (end < 0)
+			end = html.length();
+		return html.substring(start + 1, end);
+	}
+
+	/**
+	 * Read a file.
+	 *
+	 * @param file the file
+	 * @return the content of the file
+	 * @throws IOException if the file can't be read
+	 */
+	private String read(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			Reader reader = encoding == null ? new InputStreamReader(in) : new InputStreamReader(in, encoding);
+			StringBuffer sb = new StringBuffer((int) file.length());
+			char[] buffer = new char[8192];
+			int count;
+			while ((count = reader.read(buffer)) > 0) {
+				sb.append(buffer, 0, count);
+			}
+			return sb.toString();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Find the directories of packages.
+	 *
+	 * @param sourcepath the source path
+	 * @param name the name of a package
+	 * @param recursive if <code>true</code>, find the sub-packages too.
+	 * @param packages maps package names to the list of its directories
+	 */
+	private static void findPackages(String sourcepath, String name, boolean recursive, Map<String, List<File>> packages) {
+		StringTokenizer tokenizer = new StringTokenizer(sourcepath, File.pathSeparator);
+		while (tokenizer.hasMoreTokens()) {
+			File dir = new File(tokenizer.nextToken(), name.replace('.', File.separatorChar));
+			findPackages(dir, name, recursive, packages);
+		}
+	}
+
+	/**
+	 * Find the directories of packages.
+	 *
+	 * @param dir the directory of the package
+	 * @param name the name of the package
+	 * @param recursive if <code>true</code>, find the sub-packages too.
+	 * @param packages maps package names to the list of its directories
+	 */
+	private static void findPackages(File dir, String name, boolean recursive, Map<String, List<File>> packages) {
+		File[] entries = dir.listFiles();
+		if (entries == null)
+			return;
+		Arrays.sort(entries);
+		boolean hasSources = false;
+		for (int i = 0; i < entries.length; i++) {
+			String entryName = entries[i].getName();
+			if (entries[i].isDirectory()) {
+				if (recursive && entryName.indexOf('.') < 0)
+					findPackages(entries[i], name + "." + entryName, recursive, packages);
+			} else if (entryName.endsWith(".java")) {
+				hasSources = true;
+			}
+		}
+		if (hasSources) {
+			List<File> dirs = packages.get(name);
+			if (dirs == null) {
+				dirs = new ArrayList<File>();
+				packages.put(name, dirs);
+			}
+			dirs.add(dir);
+		}
+	}
+
+	/**
+	 * Print a usage message and the options.
+	 */
+	private static void usage() {
+		System.err.println("Usage: java "+SourcePreScanner.class.getName()
+				+" [options] -sourcepath <path> [-subpackages <pkg1>:<pkg2>...] [packagenames]"+Option.LF
+				+"Prints the packages, that might contain items documented by the PublishedApiDoclet."+Option.LF
+				+Option.LF
+				+"-sourcepath <path>               The source path."+Option.LF
+				+"-subpackages <pkg1>:<pkg2>...    Scan the given packages and their sub-packages."+Option.LF
+				+"-encoding <name>                 The encoding of the source files."+Option.LF
+				+"-files                           Print the source files instead of the packages."+Option.LF
+				+Option.LF
+				+"The options of the PublishedApiDoclet:"+Option.LF
+				+Option.getDescriptions());
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args the command line arguments. See {@link #usage()}.
+	 * @throws Throwable on errors
+	 */
+	public static void main(String[] args) throws Throwable {
+		String sourcepath = null;
+		String encoding = null;
+		boolean listFiles = false;
+		List<String> packageNames = new ArrayList<String>();
+		List<String> subpackages = new ArrayList<String>();
+		List<String[]> options = new ArrayList<String[]>();
+		// initialize the class, this registers its options
+		Class.forName(PublishedApiDoclet.class.getName());
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-sourcepath") && i + 1 < args.length) {
+				sourcepath = args[++i];
+			} else if (arg.equals("-subpackages") && i + 1 < args.length) {
+				StringTokenizer tokenizer = new StringTokenizer(args[++i], ":");
+				while (tokenizer.hasMoreTokens())
+					subpackages.add(tokenizer.nextToken());
+			} else if (arg.equals("-encoding") && i + 1 < args.length) {
+				encoding = args[++i];
+			} else if (arg.equals("-files")) {
+				listFiles = true;
+			} else if (Option.optionLength(arg) == 1) {
+				options.add(new String[] { arg });
+			} else if (Option.optionLength(arg) == 2 && i + 1 < args.length) {
+				options.add(new String[] { arg, args[++i] });
+			} else if (arg.startsWith("-")) {
+				System.err.println("Unknown option: "+arg);
+				usage();
+				System.exit(1);
+			} else {
+				packageNames.add(arg);
+			}
+		}
+		if (sourcepath == null || (packageNames.isEmpty() && subpackages.isEmpty())) {
+			usage();
+			System.exit(1);
+		}
+
+		PublishedApiDoclet pad = PublishedApiDoclet.createConfiguredInstance(
+				options.toArray(new String[options.size()][]));
+		SourcePreScanner scanner = new SourcePreScanner(pad, encoding);
+
+		Map<String, List<File>> packages = new TreeMap<String, List<File>>();
+		for (int i = 0; i < packageNames.size(); i++) {
+			findPackages(sourcepath, packageNames.get(i), false, packages);
+		}
+		for (int i = 0; i < subpackages.size(); i++) {
+			findPackages(sourcepath, subpackages.get(i), true, packages);
+		}
+
+		int count = 0;
+		List<File> files = listFiles ? new ArrayList<File>() : null;
+		Iterator<Map.Entry<String, List<File>>> iterator = packages.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, List<File>> entry = iterator.next();
+			if (scanner.scanPackage(entry.getValue(), files)) {
+				count++;
+				if (! listFiles)
+					System.out.println(entry.getKey());
+			}
+		}
+		if (listFiles) {
+			for (int i = 0; i < files.size(); i++) {
+				System.out.println(files.get(i).getPath());
+			}
+		}
+		System.err.println("Kept "+count+" of "+packages.size()+" packages.");
+	}
+}
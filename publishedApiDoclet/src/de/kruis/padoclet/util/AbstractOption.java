@@ -20,15 +20,17 @@
 
 package de.kruis.padoclet.util;
 
-import java.beans.Introspector;
-import java.beans.PropertyDescriptor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Option handling for doclets.
@@ -157,7 +159,7 @@ public abstract class AbstractOption {
 	 * @param options the options map
 	 */
 	protected static void register(AbstractOption option, Map<String,AbstractOption> options) {
-		options.put(Introspector.decapitalize(option.name),option);
+		options.put(decapitalize(option.name),option);
 	}
 	/**
 	 * Get an option by name.
@@ -168,7 +170,7 @@ public abstract class AbstractOption {
 	 * name was registered. 
 	 */
 	protected static AbstractOption get(String name, Map<String, AbstractOption> options) {
-		return options.get(Introspector.decapitalize(name));
+		return options.get(decapitalize(name));
 	}
 	/**
 	 * Get a string made from the descriptions of all registered options.
@@ -225,7 +227,7 @@ public abstract class AbstractOption {
 			String name = entry.getKey();
 			AbstractOption o = entry.getValue();
 			if (prefixedName.startsWith(o.namePrefix) 
-					&& Introspector.decapitalize(prefixedName.substring(o.namePrefix.length())).equals(name))
+					&& decapitalize(prefixedName.substring(o.namePrefix.length())).equals(name))
 				return o;
 		}
 		return null;
@@ -279,34 +281,115 @@ public abstract class AbstractOption {
 	 * @throws Throwable
 	 */
 	protected static void initJavaBeanProperties(Object bean, Map<String, AbstractOption> options) throws Throwable {
-		PropertyDescriptor[] pd = 
-			Introspector.getBeanInfo(bean.getClass()).getPropertyDescriptors();
-		for(int i=0;i<pd.length;i++) {
-			Method wm = pd[i].getWriteMethod();
-			if (wm == null)
-				continue;
-			String name = pd[i].getName();
-			//System.err.println("Going to set Property: "+name);
-			AbstractOption option = AbstractOption.get(name, options);
+		Method[] setters = getPropertySetters(bean.getClass());
+		for(int i=0;i<setters.length;i++) {
+			AbstractOption option = AbstractOption.get(getPropertyName(setters[i]), options);
 			if (option == null)
 				continue;
-			Class<?> propertyType = pd[i].getPropertyType();
-			Object value = null;
-			if (propertyType.isAssignableFrom(String.class)) {
-				value = option.value;
-			} else if (propertyType.isAssignableFrom(Integer.TYPE)) {
-				value = new Integer(option.value);
-			} else if (propertyType.isAssignableFrom(Boolean.TYPE)) {
-				value = Boolean.valueOf(option.isSet());
-			} else {
-				continue;
-			}
+			Object value = convert(setters[i].getParameterTypes()[0], option.value);
 			try {
-				wm.invoke(bean,new Object[]{ value});
-    			//System.err.println("Done with Property: "+name+" new value is: "+value);
+				setters[i].invoke(bean,new Object[]{ value});
 			}catch (InvocationTargetException e) {
 				throw e.getTargetException();
 			}
 		}
 	}
+
+	/**
+	 * Convert a name to the name of a java bean property.
+	 * 
+	 * This method follows the rules of {@link java.beans.Introspector#decapitalize(String)}:
+	 * the first character is converted to lower case, unless the first two 
+	 * characters are upper case.
+	 * 
+	 * @param name the name
+	 * @return the decapitalized name
+	 */
+	static String decapitalize(String name) {
+		if (name == null || name.length() == 0)
+			return name;
+		if (name.length() > 1 && Character.isUpperCase(name.charAt(1)) 
+				&& Character.isUpperCase(name.charAt(0)))
+			return name;
+		return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+	}
+
+	/**
+	 * holds the property setters of the bean classes seen so far
+	 */
+	private static final ConcurrentHashMap<Class<?>, Method[]> propertySetters = new ConcurrentHashMap<Class<?>, Method[]>();
+
+	/**
+	 * Get the setter methods of the properties, that can be set by an option.
+	 * 
+	 * These are the public methods named <code>set<i>Name</i></code>, that 
+	 * return <code>void</code> and take a single <code>String</code>, 
+	 * <code>int</code> or <code>boolean</code> parameter.
+	 * 
+	 * @param beanClass the class of a java bean
+	 * @return the setter methods
+	 */
+	static Method[] getPropertySetters(Class<?> beanClass) {
+		Method[] setters = propertySetters.get(beanClass);
+		if (setters == null) {
+			List<Method> list = new ArrayList<Method>();
+			Method[] methods = beanClass.getMethods();
+			for(int i=0;i<methods.length;i++) {
+				Method m = methods[i];
+				if (m.getName().length() <= 3 || ! m.getName().startsWith("set") 
+						|| Modifier.isStatic(m.getModifiers()) || m.getReturnType() != Void.TYPE 
+						|| m.getParameterTypes().length != 1)
+					continue;
+				if (isSupportedType(m.getParameterTypes()[0]))
+					list.add(m);
+			}
+			setters = list.toArray(new Method[list.size()]);
+			propertySetters.put(beanClass, setters);
+		}
+		return setters;
+	}
+
+	/**
+	 * Get the property name of a setter method.
+	 * 
+	 * @param setter the setter method
+	 * @return the decapitalized method name without the prefix <code>set</code>.
+	 */
+	static String getPropertyName(Method setter) {
+		return decapitalize(setter.getName().substring(3));
+	}
+
+	/**
+	 * Test, if a property type can be set by an option.
+	 * 
+	 * @param propertyType the type of the property
+	 * @return <code>true</code>, if {@link #convert(Class, String)} supports 
+	 * the type.
+	 */
+	private static boolean isSupportedType(Class<?> propertyType) {
+		return propertyType.isAssignableFrom(String.class) 
+			|| propertyType.isAssignableFrom(Integer.TYPE) 
+			|| propertyType.isAssignableFrom(Boolean.TYPE);
+	}
+
+	/**
+	 * Convert an option value to the type of a property.
+	 * 
+	 * @param propertyType the type of the property
+	 * @param value the value of an option
+	 * @return the converted value or <code>null</code>, if the type
+	 * is not supported.
+	 * @throws NumberFormatException if the property is an <code>int</code>
+	 * property, but the value is not a number.
+	 */
+	static Object convert(Class<?> propertyType, String value) {
+		if (propertyType.isAssignableFrom(String.class)) {
+			return value;
+		} else if (propertyType.isAssignableFrom(Integer.TYPE)) {
+			return new Integer(value);
+		} else if (propertyType.isAssignableFrom(Boolean.TYPE)) {
+			return Boolean.valueOf(value);
+		}
+		return null;
+	}
 }
\ No newline at end of file
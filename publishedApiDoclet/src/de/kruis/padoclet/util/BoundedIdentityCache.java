@@ -0,0 +1,130 @@
+/*
+ *  PublishedApiDoclet - a filter proxy for any javadoc doclet
+ *
+ *  Copyright (C) 2010  Anselm Kruis <a.kruis@science-computing.de>
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package de.kruis.padoclet.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache with a limited number of entries, that compares the keys by identity.
+ *
+ * <p>
+ * If the cache is full, the least recently used entry is evicted. Unlike
+ * {@link WeakIdentityCache}, this cache does not depend on the garbage
+ * collection of the keys, therefore it limits the memory used by the
+ * values, even if the keys stay reachable.
+ * </p>
+ *
+ * @author kruis
+ */
+final class BoundedIdentityCache<V> implements IdentityCache<V> {
+
+	/**
+	 * The key of a map entry.
+	 */
+	private static final class IdentityKey {
+		private final Object referent;
+		private final int hash;
+
+		IdentityKey(Object referent) {
+			this.referent = referent;
+			this.hash = System.identityHashCode(referent);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object obj) {
+			return obj instanceof IdentityKey && referent == ((IdentityKey) obj).referent;
+		}
+	}
+
+	/**
+	 * holds the entries in access order. Guarded by <code>this</code>.
+	 */
+	private final LinkedHashMap<IdentityKey, V> map;
+
+	/**
+	 * the number of evicted entries. Guarded by <code>this</code>.
+	 */
+	private long evictions;
+
+	/**
+	 * Create a new cache.
+	 *
+	 * @param limit the maximum number of entries
+	 */
+	BoundedIdentityCache(final int limit) {
+		this.map = new LinkedHashMap<IdentityKey, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<IdentityKey, V> eldest) {
+				if (size() <= limit)
+					return false;
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Get the value for a key.
+	 *
+	 * @param key the key
+	 * @return the value or <code>null</code>, if the cache contains no
+	 * value for <code>key</code>.
+	 */
+	public synchronized V get(Object key) {
+		return map.get(new IdentityKey(key));
+	}
+
+	/**
+	 * Add a value, unless the cache already contains a value for the key.
+	 *
+	 * @param key the key. Must not be <code>null</code>.
+	 * @param value the value. Must not be <code>null</code>.
+	 * @return the value already contained in the cache or <code>null</code>,
+	 * if <code>value</code> has been added.
+	 */
+	public synchronized V putIfAbsent(Object key, V value) {
+		IdentityKey identityKey = new IdentityKey(key);
+		V existing = map.get(identityKey);
+		if (existing != null)
+			return existing;
+		map.put(identityKey, value);
+		return null;
+	}
+
+	/**
+	 * Remove all entries.
+	 */
+	public synchronized void clear() {
+		map.clear();
+	}
+
+	/**
+	 * @return the number of entries evicted so far.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+}
@@ -23,13 +23,25 @@
  */
 package de.kruis.padoclet.util;
 
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
 import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -54,13 +66,117 @@ public class HalfDynamicProxy implements InvocationHandlerWithTarget {
 		void emitMessage(String theMessage, int priority);
 	}
 
+	/**
+	 * Declares interface methods as pure.
+	 * 
+	 * <p>
+	 * Use this annotation on an invocation handler class to name the 
+	 * interface methods, whose results depend on the arguments only. The result
+	 * of such a method is computed once per proxy and argument list. Later calls
+	 * return the remembered result. Arrays are copied, before they are returned.
+	 * </p>
+	 * <p>
+	 * All methods with a given name are pure, if their parameters are 
+	 * primitive or strings. The annotations of the superclasses of an
+	 * invocation handler class are merged. 
+	 * </p>
+	 * 
+	 * @author kruis
+	 * @see HalfDynamicProxy#clearMemo()
+	 * @see HalfDynamicProxy#reportMemoStatistics(HalfDynamicProxy.HDPState, HalfDynamicProxy.MessageInterface)
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	public static @interface PureMethods {
+		/**
+		 * @return the names of the pure methods.
+		 */
+		String[] value();
+	}
+
+	/**
+	 * This interface is implemented by all proxy classes generated at runtime.
+	 * 
+	 * @author kruis
+	 * @see HalfDynamicProxy#stateFactory(Object, HalfDynamicProxy.MessageInterface, boolean)
+	 */
+	public static interface GeneratedProxy {
+		/**
+		 * Get the invocation handler of this proxy.
+		 * 
+		 * @return the invocation handler.
+		 */
+		InvocationHandlerWithTarget getInvocationHandlerWithTarget();
+	}
+
+	/**
+	 * Calls a particular interface method on a proxy target.
+	 * 
+	 * A forwarder is bound to the exact signature of its method. Unlike 
+	 * {@link Method#invoke(Object, Object[])}, it neither checks the 
+	 * access rights nor wraps exceptions thrown by the method. Forwarders 
+	 * are created by the dispatch table of a HalfDynamicProxy. 
+	 * This interface is public, because it gets implemented by classes 
+	 * generated at runtime.
+	 * 
+	 * @author kruis
+	 */
+	public static interface Forwarder {
+		/**
+		 * Invoke the method.
+		 * 
+		 * @param target the proxy target
+		 * @param args the arguments of the method call. Primitive values are wrapped.
+		 * @return the result of the method call. Primitive values are wrapped.
+		 * @throws Throwable any exception thrown by the method.
+		 */
+		Object forward(Object target, Object[] args) throws Throwable;
+	}
+
+	/**
+	 * A forwarder, that uses reflection. It is used, if no forwarder class can
+	 * be generated for a method.
+	 * 
+	 * @author kruis
+	 */
+	private static final class ReflectiveForwarder implements Forwarder {
+		private final Method method;
+
+		ReflectiveForwarder(Method method) {
+			this.method = method;
+			try {
+				// skip the access check on each call
+				method.setAccessible(true);
+			} catch (SecurityException e) {
+				// ignore
+			}
+		}
+
+		public Object forward(Object target, Object[] args) throws Throwable {
+			try {
+				return method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				throw e.getTargetException();
+			}
+		}
+	}
+
 	/**
 	 * Holds the state of a HalfDynamicProxy.
 	 * 
+	 * <p>
+	 * A state object is a proxy domain: it owns the proxy class table, the
+	 * dispatch decisions derived from this table, the generated proxy classes
+	 * and all proxies created for it. Proxies of different states don't 
+	 * share anything, therefore a state can be configured and released 
+	 * independent of all other states. Call {@link #close()} to release
+	 * the proxies of a state, as soon as they are no longer used.
+	 * </p>
+	 * 
 	 * @author kruis
 	 * 
 	 */
-	private static class HDPState {
+	public static final class HDPState {
 		/**
 		 * a default implementation of the {@link HalfDynamicProxy.MessageInterface}.
 		 */
@@ -74,55 +190,911 @@ public class HalfDynamicProxy implements InvocationHandlerWithTarget {
 			public void emitMessage(String theMessage, int priority) {
 				System.err.println(theMessage);
 			}
-		};
+		};
+
+		/**
+		 * Holds a user provided object. Not used by the HalfDynamicProxy class.
+		 */
+		private Object userState;
+
+		/**
+		 * holds the instance cache. This cache is required in order to build
+		 * just a one proxy for each proxy target. The proxy targets are compared
+		 * by identity.
+		 */
+		private final WeakIdentityCache<Object> proxyCache;
+
+		/**
+		 * holds the proxies with a transparent invocation handler (see 
+		 * {@link HalfDynamicProxy#isTransparent(Class, Class[])}), if the 
+		 * number of these proxies is limited. Otherwise <code>null</code>. 
+		 * A transparent handler has no state of its own, therefore a new 
+		 * proxy for the same target is equivalent to an evicted one.
+		 */
+		private final BoundedIdentityCache<Object> boundedProxyCache;
+
+		/**
+		 * holds the decisions of {@link HalfDynamicProxy#isProxyRequired(Object, Resolution, int, HalfDynamicProxy.HDPState)}
+		 * for the targets of classes with {@link Resolution#isDecisionCached()}.
+		 * The results of the probe methods of a proxy target never change, 
+		 * therefore the decision for a target is computed once.
+		 */
+		private final WeakIdentityCache<Boolean> proxyRequired;
+
+		/**
+		 * where to send messages to.
+		 */
+		private MessageInterface reciver;
+
+		/**
+		 * if <code>true</code>, use generated proxy classes instead of
+		 * {@link Proxy}.
+		 */
+		private boolean generatedProxies;
+
+		/**
+		 * the mapping table, that determinates the invocation handler class 
+		 * for a proxy target class. See {@link HalfDynamicProxy#setProxyClassTable(Class[][])}.
+		 */
+		private final Class<?>[][] proxyClassTable;
+
+		/**
+		 * holds the resolutions for all proxy target classes seen so far.
+		 */
+		private final ConcurrentHashMap<Class<?>, Resolution> resolutions = new ConcurrentHashMap<Class<?>, Resolution>();
+
+		/**
+		 * holds the dispatch tables of all invocation handler classes seen so far.
+		 */
+		private final ConcurrentHashMap<Class<?>, DispatchTable> dispatchTables = new ConcurrentHashMap<Class<?>, DispatchTable>();
+
+		/**
+		 * holds the generated proxy classes.
+		 */
+		private final ProxyClassGenerator.Cache generatedClasses;
+
+		/**
+		 * <code>true</code>, after {@link #close()} has been called.
+		 */
+		private volatile boolean closed;
+
+		/**
+		 * the lock held by each call of a proxy target method or
+		 * <code>null</code>, if the calls are not serialized.
+		 * See {@link HalfDynamicProxy#getTargetLock()}.
+		 */
+		private final Object targetLock;
+
+		/**
+		 * Create a new state object
+		 * 
+		 * @param userState
+		 *            an arbitrary object provided by the caller. May be
+		 *            <code>null</code>.
+		 * @param reciver
+		 *            where to send messages to. May be <code>null</code>.
+		 * @param generatedProxies
+		 *            if <code>true</code>, use generated proxy classes.
+		 * @param proxyCacheLimit
+		 *            the maximum number of cached proxies with a transparent 
+		 *            invocation handler. 0 means unlimited.
+		 * @param proxyClassTable
+		 *            the proxy class table. Must not be <code>null</code>.
+		 * @param serialized
+		 *            if <code>true</code>, serialize the calls of the 
+		 *            proxy target methods.
+		 */
+		HDPState(Object userState, MessageInterface reciver, boolean generatedProxies,
+				int proxyCacheLimit, Class<?>[][] proxyClassTable, boolean serialized) {
+			if (proxyClassTable == null)
+				throw new IllegalArgumentException("no proxy class table");
+			this.proxyClassTable = proxyClassTable;
+			this.userState = userState;
+			this.reciver = reciver != null ? reciver : defaultReciver;
+			this.generatedClasses = new ProxyClassGenerator.Cache(this.reciver, serialized);
+			this.generatedProxies = generatedProxies;
+			this.targetLock = serialized ? new Object() : null;
+			this.proxyCache = new WeakIdentityCache<Object>();
+			this.proxyRequired = new WeakIdentityCache<Boolean>();
+			if (proxyCacheLimit > 0) {
+				this.boundedProxyCache = new BoundedIdentityCache<Object>(proxyCacheLimit);
+			} else {
+				this.boundedProxyCache = null;
+			}
+		}
+
+		/**
+		 * Get the cache for the proxy of an object.
+		 * 
+		 * @param resolution the resolution of the class of the object
+		 * @return the cache
+		 */
+		IdentityCache<Object> getProxyCache(Resolution resolution) {
+			if (boundedProxyCache != null && resolution.transparent)
+				return boundedProxyCache;
+			return proxyCache;
+		}
+
+		/**
+		 * Get the resolution for a proxy target class.
+		 * 
+		 * @param cls the class of a proxy target
+		 * @return the resolution. It is created on demand.
+		 */
+		Resolution getResolution(Class<?> cls) {
+			Resolution resolution = resolutions.get(cls);
+			if (resolution == null) {
+				resolution = resolve(cls, this);
+				Resolution existing = resolutions.putIfAbsent(cls, resolution);
+				if (existing != null)
+					resolution = existing;
+			}
+			return resolution;
+		}
+
+		/**
+		 * Get the dispatch table for an invocation handler class.
+		 * 
+		 * @param handlerClass the invocation handler class
+		 * @return the dispatch table. It is created on demand.
+		 */
+		DispatchTable getDispatchTable(Class<?> handlerClass) {
+			DispatchTable dispatchTable = dispatchTables.get(handlerClass);
+			if (dispatchTable == null) {
+				dispatchTable = new DispatchTable(handlerClass, proxyClassTable);
+				DispatchTable existing = dispatchTables.putIfAbsent(handlerClass, dispatchTable);
+				if (existing != null)
+					dispatchTable = existing;
+			}
+			return dispatchTable;
+		}
+
+		/**
+		 * Release the proxies of this state.
+		 * 
+		 * This method drops the proxy caches, the resolutions, the dispatch
+		 * tables and the generated proxy classes, therefore they can be 
+		 * garbage collected, even if a proxy of this state is still 
+		 * reachable. Afterwards any attempt to get a proxy for this state
+		 * throws an {@link IllegalStateException}.
+		 */
+		public void close() {
+			closed = true;
+			proxyCache.clear();
+			proxyRequired.clear();
+			if (boundedProxyCache != null) {
+				boundedProxyCache.clear();
+			}
+			resolutions.clear();
+			dispatchTables.clear();
+			generatedClasses.clear();
+		}
+
+		/**
+		 * @return <code>true</code>, if {@link #close()} has been called.
+		 */
+		public boolean isClosed() {
+			return closed;
+		}
+
+		/**
+		 * @return <code>true</code>, if the calls of the proxy target methods 
+		 * of this state are serialized. 
+		 * See {@link HalfDynamicProxy#stateFactory(Object, HalfDynamicProxy.MessageInterface, boolean, int, Class[][], boolean)}.
+		 */
+		public boolean isSerialized() {
+			return targetLock != null;
+		}
+
+
+		@SuppressWarnings("unused")
+		public void debug(String message) {
+			this.reciver.emitMessage(message, MessageInterface.PRIORITY_DEBUG);
+		}
+
+		@SuppressWarnings("unused")
+		public void error(String message) {
+			this.reciver.emitMessage(message, MessageInterface.PRIORITY_ERROR);
+		}
+	}
+
+	/**
+	 * Holds the dispatch decision for a single interface method.
+	 * 
+	 * @author kruis
+	 */
+	static final class Dispatch {
+		/**
+		 * the method to be invoked. Either a method of the invocation handler
+		 * class or the interface method itself.
+		 */
+		final Method method;
+
+		/**
+		 * <code>true</code>, if {@link #method} is implemented by the invocation 
+		 * handler. Otherwise the call is forwarded to the proxy target.
+		 */
+		final boolean isOverride;
+
+		/**
+		 * the forwarder used to call {@link #method} on the proxy target, if 
+		 * the method is not implemented by the invocation handler. It is 
+		 * created on first use.
+		 */
+		private volatile Forwarder forwarder;
+
+		/**
+		 * the result of a forwarded call never needs a proxy
+		 */
+		static final int RESULT_NONE = 0;
+
+		/**
+		 * the result of a forwarded call might need a proxy
+		 */
+		static final int RESULT_SINGLE = 1;
+
+		/**
+		 * the result of a forwarded call is an array, whose elements 
+		 * might need a proxy
+		 */
+		static final int RESULT_ARRAY = 2;
+
+		/**
+		 * how to treat the result of a forwarded call. One of 
+		 * {@link #RESULT_NONE}, {@link #RESULT_SINGLE} and {@link #RESULT_ARRAY}.
+		 */
+		final int resultKind;
+
+		/**
+		 * the index of the memo slot of a pure method or -1, if the result 
+		 * of the method is not remembered.
+		 */
+		final int memoSlot;
+
+		/**
+		 * <code>true</code>, if the memo slot holds a map from the argument
+		 * list to the result.
+		 */
+		final boolean memoByArgs;
+
+		/**
+		 * counts the calls served from the memo
+		 */
+		final AtomicLong memoHits;
+
+		/**
+		 * counts the calls, that computed a result
+		 */
+		final AtomicLong memoMisses;
+
+		Dispatch(Method method, boolean isOverride, int memoSlot, Class<?>[][] proxyClassTable) {
+			this.method = method;
+			this.isOverride = isOverride;
+			this.memoSlot = memoSlot;
+			this.memoByArgs = method.getParameterTypes().length > 0;
+			this.memoHits = memoSlot >= 0 ? new AtomicLong() : null;
+			this.memoMisses = memoSlot >= 0 ? new AtomicLong() : null;
+			Class<?> returnType = method.getReturnType();
+			if (isOverride) {
+				// the invocation handler creates its own proxies
+				this.resultKind = RESULT_NONE;
+			} else if (!mightNeedProxy(returnType, proxyClassTable)) {
+				this.resultKind = RESULT_NONE;
+			} else if (returnType.isArray()) {
+				this.resultKind = RESULT_ARRAY;
+			} else {
+				this.resultKind = RESULT_SINGLE;
+			}
+		}
+
+		/**
+		 * Test, if a value of a given type might need a proxy.
+		 * 
+		 * The test is based on the proxy class table. 
+		 * A type might need a proxy, if it is related to at least one interface 
+		 * of a table row, that is one of both is assignable from the other. For
+		 * a final class all interfaces of the row must be assignable from the 
+		 * class. Primitive types never need a proxy.
+		 * 
+		 * @param type the declared type of a value
+		 * @param table the proxy class table
+		 * @return <code>false</code>, if the value never needs a proxy.
+		 */
+		private static boolean mightNeedProxy(Class<?> type, Class<?>[][] table) {
+			while (type.isArray())
+				type = type.getComponentType();
+			if (type.isPrimitive())
+				return false;
+			boolean isFinal = Modifier.isFinal(type.getModifiers());
+			for (int i = 0; i < table.length; i++) {
+				if (isRelated(type, isFinal, table[i]))
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Test, if a type is related to a row of the proxy class table.
+		 * 
+		 * @param type the type
+		 * @param isFinal <code>true</code>, if type is a final class
+		 * @param row the row
+		 * @return <code>true</code>, if a value of the type might be matched by 
+		 * the row.
+		 * @see #mightNeedProxy(Class, Class[][])
+		 */
+		static boolean isRelated(Class<?> type, boolean isFinal, Class<?>[] row) {
+			if (row == null)
+				return false;
+			boolean matches = isFinal;
+			for (int j = 1; j < row.length; j++) {
+				Class<?> iface = row[j];
+				if (isFinal) {
+					if (!iface.isAssignableFrom(type))
+						return false;
+				} else if (iface.isAssignableFrom(type) || type.isAssignableFrom(iface)) {
+					return true;
+				}
+			}
+			return matches;
+		}
+
+		/**
+		 * Get the forwarder for {@link #method}.
+		 * 
+		 * @param cache the generated classes of the state, that owns this dispatch.
+		 * @return the forwarder
+		 */
+		Forwarder getForwarder(ProxyClassGenerator.Cache cache) {
+			Forwarder f = this.forwarder;
+			if (f == null) {
+				// concurrent callers might create a second forwarder. That's harmless.
+				f = ProxyClassGenerator.createForwarder(this.method, cache);
+				if (f == null)
+					f = new ReflectiveForwarder(this.method);
+				this.forwarder = f;
+			}
+			return f;
+		}
+	}
+
+	/**
+	 * The dispatch table of an invocation handler class.
+	 * 
+	 * The table maps interface methods to the method, that must be invoked
+	 * instead. It is filled once for all interfaces of a proxy target class, 
+	 * when the first proxy for an instance of this class gets created. 
+	 * Therefore {@link HalfDynamicProxy#invoke(Object, Method, Object[])} 
+	 * usually does not need any reflective lookup.
+	 * 
+	 * @author kruis
+	 */
+	static final class DispatchTable {
+		/**
+		 * the invocation handler class
+		 */
+		private final Class<?> handlerClass;
+
+		/**
+		 * the proxy class table, that determinates the dispatch decisions
+		 */
+		private final Class<?>[][] proxyClassTable;
+
+		/**
+		 * maps interface methods to dispatch decisions
+		 */
+		private final ConcurrentHashMap<Method, Dispatch> table = new ConcurrentHashMap<Method, Dispatch>();
+
+		/**
+		 * the proxy target classes, whose interfaces are already in the table.
+		 */
+		private final ConcurrentHashMap<Class<?>, Boolean> knownTargetClasses = new ConcurrentHashMap<Class<?>, Boolean>();
+
+		/**
+		 * the names of the pure methods
+		 */
+		private final Set<String> pureMethods = new HashSet<String>();
+
+		/**
+		 * used to allocate memo slots
+		 */
+		private final AtomicInteger memoSlotCount = new AtomicInteger();
+
+		DispatchTable(Class<?> handlerClass, Class<?>[][] proxyClassTable) {
+			this.handlerClass = handlerClass;
+			this.proxyClassTable = proxyClassTable;
+			for (Class<?> cls = handlerClass; cls != null; cls = cls.getSuperclass()) {
+				PureMethods annotation = cls.getAnnotation(PureMethods.class);
+				if (annotation != null)
+					pureMethods.addAll(Arrays.asList(annotation.value()));
+			}
+			// the proxy class forwards these methods to the invocation handler
+			Method[] methods = Object.class.getMethods();
+			for (int i = 0; i < methods.length; i++) {
+				add(methods[i]);
+			}
+		}
+
+		/**
+		 * Add all methods of the interfaces implemented by a proxy target class.
+		 * 
+		 * @param targetClass the class of a proxy target
+		 */
+		void addInterfacesOf(Class<?> targetClass) {
+			if (knownTargetClasses.putIfAbsent(targetClass, Boolean.TRUE) != null)
+				return;
+			Class<?>[] interfaces = targetClass.getInterfaces();
+			for (int i = 0; i < interfaces.length; i++) {
+				Method[] methods = interfaces[i].getMethods();
+				for (int j = 0; j < methods.length; j++) {
+					add(methods[j]);
+				}
+			}
+		}
+
+		/**
+		 * Get the dispatch decision for a method.
+		 * 
+		 * @param method an interface method
+		 * @return the dispatch decision.
+		 */
+		Dispatch get(Method method) {
+			Dispatch dispatch = table.get(method);
+			if (dispatch == null) {
+				// not expected, but possible, if the proxy was created for
+				// a class unknown to this table
+				dispatch = add(method);
+			}
+			return dispatch;
+		}
+
+		/**
+		 * Compute the dispatch decision for a method and add it to the table.
+		 * 
+		 * @param method an interface method
+		 * @return the dispatch decision.
+		 */
+		private Dispatch add(Method method) {
+			Dispatch dispatch = table.get(method);
+			if (dispatch != null)
+				return dispatch;
+			int memoSlot = isPure(method) ? memoSlotCount.getAndIncrement() : -1;
+			try {
+				dispatch = new Dispatch(handlerClass.getMethod(method.getName(),
+						method.getParameterTypes()), true, memoSlot, proxyClassTable);
+			} catch (NoSuchMethodException e) {
+				dispatch = new Dispatch(method, false, memoSlot, proxyClassTable);
+			}
+			Dispatch existing = table.putIfAbsent(method, dispatch);
+			return existing != null ? existing : dispatch;
+		}
+
+		/**
+		 * Test, if the result of a method can be remembered.
+		 * 
+		 * @param method an interface method
+		 * @return <code>true</code>, if the method is declared pure by a
+		 * {@link PureMethods} annotation, returns a value and takes 
+		 * only primitive or string arguments.
+		 */
+		private boolean isPure(Method method) {
+			if (!pureMethods.contains(method.getName()) || method.getReturnType() == Void.TYPE)
+				return false;
+			Class<?>[] parameterTypes = method.getParameterTypes();
+			for (int i = 0; i < parameterTypes.length; i++) {
+				if (!parameterTypes[i].isPrimitive() && parameterTypes[i] != String.class)
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * @return the number of memo slots allocated so far.
+		 */
+		int getMemoSlotCount() {
+			return memoSlotCount.get();
+		}
+	}
+
+	/**
+	 * Holds the shared empty arrays.
+	 */
+	private static final ConcurrentHashMap<Class<?>, Object[]> emptyArrays = new ConcurrentHashMap<Class<?>, Object[]>();
+
+	/**
+	 * Get an empty array.
+	 * 
+	 * Empty arrays are immutable, therefore a single instance per component
+	 * type is sufficient.
+	 * 
+	 * @param componentType the component type of the array
+	 * @return a shared array of length 0
+	 */
+	public static Object[] getEmptyArray(Class<?> componentType) {
+		Object[] array = emptyArrays.get(componentType);
+		if (array == null) {
+			array = (Object[]) Array.newInstance(componentType, 0);
+			Object[] existing = emptyArrays.putIfAbsent(componentType, array);
+			if (existing != null)
+				array = existing;
+		}
+		return array;
+	}
+
+	/**
+	 * Holds the default proxy class table for new state objects.
+	 */
+	private static volatile Class<?>[][] proxyClassTable;
+
+	/**
+	 * Holds everything required to create a proxy for instances of a 
+	 * particular proxy target class.
+	 * 
+	 * @author kruis
+	 */
+	private static final class Resolution {
+		/**
+		 * used for classes, whose instances don't get a proxy.
+		 */
+		static final Resolution NO_PROXY = new Resolution(null, null, null, null, false, null);
+
+		/**
+		 * the invocation handler class or <code>null</code>, if no proxy 
+		 * is required.
+		 */
+		final Class<?> handlerClass;
+
+		/**
+		 * the constructor of the invocation handler class.
+		 */
+		final Constructor<?> handlerConstructor;
+
+		/**
+		 * the interfaces to be implemented by the proxy.
+		 */
+		final Class<?>[] interfaces;
+
+		/**
+		 * the constructor of the {@link Proxy} class.
+		 */
+		final Constructor<?> proxyConstructor;
+
+		/**
+		 * <code>true</code>, if the invocation handler class is transparent.
+		 * See {@link HalfDynamicProxy#isTransparent(Class, Class[])}.
+		 */
+		final boolean transparent;
+
+		/**
+		 * the methods, whose results decide, if an instance needs a proxy,
+		 * or <code>null</code>, if every instance needs a proxy.
+		 * See {@link HalfDynamicProxy#isProxyRequired(Object, Resolution, int, HalfDynamicProxy.HDPState)}.
+		 */
+		final Dispatch[] probes;
+
+		/**
+		 * the constructor of the generated proxy class. Valid, if
+		 * {@link #generatedResolved} is <code>true</code>.
+		 */
+		private volatile Constructor<?> generatedConstructor;
+		private volatile boolean generatedResolved;
+
+		/**
+		 * counts the lookups and hits of remembered decisions of 
+		 * {@link HalfDynamicProxy#isProxyRequired(Object, Resolution, int, HalfDynamicProxy.HDPState)}.
+		 */
+		private final AtomicInteger decisionLookups = new AtomicInteger();
+		private final AtomicInteger decisionHits = new AtomicInteger();
+
+		/**
+		 * <code>false</code>, if remembering the decisions doesn't pay.
+		 */
+		private volatile boolean decisionCached = true;
+
+		Resolution(Class<?> handlerClass, Constructor<?> handlerConstructor,
+				Class<?>[] interfaces, Constructor<?> proxyConstructor, 
+				boolean transparent, Dispatch[] probes) {
+			this.handlerClass = handlerClass;
+			this.handlerConstructor = handlerConstructor;
+			this.interfaces = interfaces;
+			this.proxyConstructor = proxyConstructor;
+			this.transparent = transparent;
+			this.probes = probes;
+		}
+
+		/**
+		 * Test, if the decisions for the targets of this class are remembered.
+		 * 
+		 * Many targets are created anew on each call (i.e. parameters), 
+		 * others are shared (i.e. primitive types). Remembering the decision 
+		 * for a target, that is never seen again, costs more than the probe 
+		 * calls. Therefore remembering stops, if less than half of the
+		 * first {@link HalfDynamicProxy#DECISION_SAMPLE} lookups hit.
+		 * 
+		 * @return <code>true</code>, if the decisions are remembered.
+		 */
+		boolean isDecisionCached() {
+			return decisionCached;
+		}
+
+		/**
+		 * Count a lookup of a remembered decision.
+		 * 
+		 * @param hit <code>true</code>, if the decision was remembered.
+		 */
+		void countDecisionLookup(boolean hit) {
+			int hits = hit ? decisionHits.incrementAndGet() : decisionHits.get();
+			int lookups = decisionLookups.incrementAndGet();
+			if (lookups == DECISION_SAMPLE && 2 * hits < lookups)
+				decisionCached = false;
+		}
+
+		/**
+		 * Get the constructor of the generated proxy class.
+		 * 
+		 * @param state the state, that owns this resolution
+		 * @return the constructor or <code>null</code>, if no class
+		 * can be generated.
+		 */
+		Constructor<?> getGeneratedConstructor(HDPState state) {
+			if (!generatedResolved) {
+				if (HalfDynamicProxy.class.isAssignableFrom(handlerClass)) {
+					generatedConstructor = ProxyClassGenerator.getProxyConstructor(handlerClass,
+							interfaces, state.getDispatchTable(handlerClass), state.generatedClasses);
+				}
+				generatedResolved = true;
+			}
+			return generatedConstructor;
+		}
+	}
+
+	/**
+	 * Find the invocation handler class for a proxy target class.
+	 * 
+	 * @param cls the class of a proxy target
+	 * @param state the state, whose proxy class table is used
+	 * @return a new resolution
+	 */
+	private static Resolution resolve(Class<?> cls, HDPState state) {
+		if (String.class == cls || GeneratedProxy.class.isAssignableFrom(cls) 
+				|| Proxy.isProxyClass(cls)) {
+			return Resolution.NO_PROXY;
+		}
+		// find the right class
+		Class<?>[][] table = state.proxyClassTable;
+		Class<?> invocationHandlerClass = null;
+		for (int i = 0; i < table.length; i++) {
+			// assert, that the row is valid
+			if (table[i] == null
+					|| table[i].length < 1
+					|| !InvocationHandlerWithTarget.class
+							.isAssignableFrom(table[i][0])) {
+				throw new ClassCastException(
+						"invalid proxy class at index " + i);
+			}
+			// loop over all required interfaces
+			int j;
+			for (j = 1; j < table[i].length; j++) {
+				if (!table[i][j].isAssignableFrom(cls))
+					break;
+			}
+			if (j >= table[i].length) {
+				// we got it
+				invocationHandlerClass = table[i][0];
+				break;
+			}
+		}
+		if (invocationHandlerClass == null) {
+			// state.debug("no invocation Handler for object of class:
+			// "+cls.getName());
+			return Resolution.NO_PROXY;
+		}
+		Class<?>[] interfaces = cls.getInterfaces();
+		Dispatch[] probes = null;
+		boolean transparent = isTransparent(invocationHandlerClass, interfaces);
+		// a raw object would let the caller call the target without the lock
+		if (transparent && ! state.isSerialized()) {
+			probes = getProbes(invocationHandlerClass, interfaces, state);
+			if (probes != null && probes.length == 0) {
+				// no method leads to an object, that gets a non-transparent proxy
+				return Resolution.NO_PROXY;
+			}
+		}
+		try {
+			Constructor<?> handlerConstructor = invocationHandlerClass.getConstructor(new Class<?>[0]);
+			Constructor<?> proxyConstructor = Proxy.getProxyClass(cls.getClassLoader(), interfaces)
+					.getConstructor(new Class<?>[] { InvocationHandler.class });
+			return new Resolution(invocationHandlerClass, handlerConstructor, interfaces, proxyConstructor, 
+					transparent, probes);
+		} catch (NoSuchMethodException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
-		/**
-		 * Holds a user provided object. Not used by the HalfDynamicProxy class.
-		 */
-		private Object userState;
+	/**
+	 * the maximum depth of the objects examined by 
+	 * {@link #isProxyRequired(Object, Resolution, int, HalfDynamicProxy.HDPState)}.
+	 */
+	private static final int MAX_PROBE_DEPTH = 4;
 
-		/**
-		 * holds the instance cache. This cache is required in order to build
-		 * just a one proxy for each proxy target.
-		 */
-		private WeakHashMap<Object, Object> proxyCache;
+	/**
+	 * the number of lookups, that decide, if the decisions of
+	 * {@link #isProxyRequired(Object, Resolution, int, HalfDynamicProxy.HDPState)} 
+	 * for a class are remembered. See {@link Resolution#isDecisionCached()}.
+	 */
+	private static final int DECISION_SAMPLE = 1024;
 
-		/**
-		 * where to send messages to.
-		 */
-		private MessageInterface reciver;
+	/**
+	 * Test, if an invocation handler class implements none of the methods 
+	 * of the given interfaces. A proxy with such a handler only wraps the 
+	 * results of the methods. It is not required, if none of the results
+	 * needs a proxy.
+	 * 
+	 * @param handlerClass the invocation handler class
+	 * @param interfaces the interfaces
+	 * @return <code>true</code>, if the handler class is transparent for
+	 * the interfaces.
+	 */
+	private static boolean isTransparent(Class<?> handlerClass, Class<?>[] interfaces) {
+		if (!HalfDynamicProxy.class.isAssignableFrom(handlerClass))
+			return false;
+		for (int i = 0; i < interfaces.length; i++) {
+			Method[] methods = interfaces[i].getMethods();
+			for (int j = 0; j < methods.length; j++) {
+				if (isObjectMethod(methods[j]))
+					continue;
+				try {
+					handlerClass.getMethod(methods[j].getName(), methods[j].getParameterTypes());
+					return false;
+				} catch (NoSuchMethodException e) {
+					// not implemented by the handler
+				}
+			}
+		}
+		return true;
+	}
 
-		/**
-		 * Create a new state object
-		 * 
-		 * @param userState
-		 *            an arbitrary object provided by the caller. May be
-		 *            <code>null</code>.
-		 * @param reciver
-		 *            where to send messages to. May be <code>null</code>.
-		 */
-		public HDPState(Object userState, MessageInterface reciver) {
-			this.userState = userState;
-			this.reciver = reciver != null ? reciver : defaultReciver;
-			this.proxyCache = new WeakHashMap<Object, Object>();
+	/**
+	 * Test, if a method has the signature of a method of {@link Object}.
+	 * 
+	 * @param method the method
+	 * @return <code>true</code>, if {@link Object} has a method with the same
+	 * name and parameter types.
+	 */
+	private static boolean isObjectMethod(Method method) {
+		try {
+			Object.class.getMethod(method.getName(), method.getParameterTypes());
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
 		}
+	}
 
-		@SuppressWarnings("unused")
-		public void debug(String message) {
-			this.reciver.emitMessage(message, MessageInterface.PRIORITY_DEBUG);
+	/**
+	 * Get the methods of the interfaces of a proxy target class, whose 
+	 * results might lead to an object, that gets a non-transparent proxy.
+	 * 
+	 * @param handlerClass the transparent invocation handler class
+	 * @param interfaces the interfaces of the proxy target class
+	 * @param state the state, that owns the dispatch table
+	 * @return the dispatch decisions of the methods or <code>null</code>, 
+	 * if such a method takes arguments.
+	 */
+	private static Dispatch[] getProbes(Class<?> handlerClass, Class<?>[] interfaces, HDPState state) {
+		DispatchTable dispatchTable = state.getDispatchTable(handlerClass);
+		Set<Dispatch> probes = new HashSet<Dispatch>();
+		for (int i = 0; i < interfaces.length; i++) {
+			Method[] methods = interfaces[i].getMethods();
+			for (int j = 0; j < methods.length; j++) {
+				Method method = methods[j];
+				if (isObjectMethod(method) 
+						|| !mightReachNonTransparentProxy(method.getReturnType(), 
+								state.proxyClassTable, new HashSet<Method>()))
+					continue;
+				if (method.getParameterTypes().length > 0)
+					return null;
+				probes.add(dispatchTable.get(method));
+			}
 		}
+		return probes.toArray(new Dispatch[probes.size()]);
+	}
 
-		@SuppressWarnings("unused")
-		public void error(String message) {
-			this.reciver.emitMessage(message, MessageInterface.PRIORITY_ERROR);
+	/**
+	 * Test, if a value of a given type might be or lead to an object, that 
+	 * gets a proxy with a non-transparent invocation handler. 
+	 * 
+	 * A type is related to a row of the proxy class table as
+	 * described for {@link Dispatch}. If the handler class of the row 
+	 * is transparent, the methods of the type and of the interfaces of the 
+	 * row are examined recursively.
+	 * 
+	 * @param type the declared type of a value
+	 * @param table the proxy class table
+	 * @param visited the methods already examined
+	 * @return <code>false</code>, if the value never leads to a 
+	 * non-transparent proxy.
+	 */
+	private static boolean mightReachNonTransparentProxy(Class<?> type, Class<?>[][] table, 
+			Set<Method> visited) {
+		while (type.isArray())
+			type = type.getComponentType();
+		if (type.isPrimitive() || type == String.class)
+			return false;
+		boolean isFinal = Modifier.isFinal(type.getModifiers());
+		for (int i = 0; i < table.length; i++) {
+			if (!Dispatch.isRelated(type, isFinal, table[i]))
+				continue;
+			Class<?>[] interfaces = new Class<?>[table[i].length];
+			System.arraycopy(table[i], 1, interfaces, 0, table[i].length - 1);
+			interfaces[interfaces.length - 1] = type;
+			if (!isTransparent(table[i][0], interfaces))
+				return true;
+			for (int j = 0; j < interfaces.length; j++) {
+				Method[] methods = interfaces[j].getMethods();
+				for (int k = 0; k < methods.length; k++) {
+					if (!isObjectMethod(methods[k]) && visited.add(methods[k])
+							&& mightReachNonTransparentProxy(methods[k].getReturnType(), table, visited))
+						return true;
+				}
+			}
 		}
+		return false;
 	}
 
 	/**
-	 * Holds a mapping table, that determinates the invocation handler class for
-	 * a proxy target class.
+	 * Test, if an object needs a proxy.
+	 * 
+	 * An object, whose invocation handler is transparent, needs a proxy 
+	 * only, if one of its probe methods returns an object, that needs 
+	 * a proxy.
+	 * 
+	 * @param obj the object
+	 * @param resolution the resolution of the class of the object
+	 * @param depth the number of probe calls, that led to this object
+	 * @param state the state, that owns the resolution
+	 * @return <code>true</code>, if the object needs a proxy. 
 	 */
-	private static Class<?>[][] proxyClassTable;
+	private static boolean isProxyRequired(Object obj, Resolution resolution, int depth, HDPState state) {
+		if (resolution.handlerClass == null)
+			return false;
+		Dispatch[] probes = resolution.probes;
+		if (probes == null)
+			return true;
+		boolean cached = resolution.isDecisionCached();
+		if (cached) {
+			Boolean known = state.proxyRequired.get(obj);
+			resolution.countDecisionLookup(known != null);
+			if (known != null)
+				return known.booleanValue();
+		}
+		if (depth >= MAX_PROBE_DEPTH)
+			// not remembered, the decision is not exact 
+			return true;
+		boolean required = false;
+		for (int i = 0; i < probes.length && !required; i++) {
+			Object value;
+			try {
+				value = probes[i].getForwarder(state.generatedClasses).forward(obj, null);
+			} catch (Throwable e) {
+				// be on the safe side
+				return true;
+			}
+			if (value == null || value == obj)
+				continue;
+			if (value instanceof Object[]) {
+				Object[] array = (Object[]) value;
+				for (int j = 0; j < array.length && !required; j++) {
+					required = array[j] != null && 
+							isProxyRequired(array[j], state.getResolution(array[j].getClass()), depth + 1, state);
+				}
+			} else {
+				required = isProxyRequired(value, state.getResolution(value.getClass()), depth + 1, state);
+			}
+		}
+		if (cached)
+			state.proxyRequired.putIfAbsent(obj, Boolean.valueOf(required));
+		return required;
+	}
 
 	/**
 	 * holds the target.
@@ -134,6 +1106,27 @@ public class HalfDynamicProxy implements InvocationHandlerWithTarget {
 	 */
 	private HalfDynamicProxy.HDPState state;
 
+	/**
+	 * holds the dispatch table for the class of this invocation handler.
+	 */
+	private DispatchTable dispatchTable;
+
+	/**
+	 * holds the remembered results of pure methods. Indexed by 
+	 * {@link Dispatch#memoSlot}. The array is replaced on each update.
+	 */
+	private volatile Object[] memo;
+
+	/**
+	 * marks a remembered <code>null</code> result.
+	 */
+	private static final Object NULL_RESULT = new Object();
+
+	/**
+	 * the memo key of a method call without arguments.
+	 */
+	private static final Object NO_ARGS = new Object();
+
 	/**
 	 * Create a new state object.
 	 * 
@@ -146,18 +1139,122 @@ public class HalfDynamicProxy implements InvocationHandlerWithTarget {
 	 */
 	public static HDPState stateFactory(Object userState,
 			MessageInterface reciver) {
-		return new HDPState(userState, reciver);
+		return stateFactory(userState, reciver, false);
+	}
+
+	/**
+	 * Create a new state object.
+	 * 
+	 * @param userState
+	 *            an arbitrary object provided by the caller. May be
+	 *            <code>null</code>.
+	 * @param reciver
+	 *            where to send messages to. May be <code>null</code>.
+	 * @param generatedProxies
+	 *            if <code>true</code>, proxies are instances of classes
+	 *            generated at runtime. These classes call the methods of the
+	 *            invocation handler or of the proxy target directly. If a class
+	 *            can't be generated or if this parameter is <code>false</code>, 
+	 *            proxies are created using {@link Proxy}.
+	 * @return a new initialized HDPState object
+	 */
+	public static HDPState stateFactory(Object userState,
+			MessageInterface reciver, boolean generatedProxies) {
+		return stateFactory(userState, reciver, generatedProxies, 0);
+	}
+
+	/**
+	 * Create a new state object.
+	 * 
+	 * @param userState
+	 *            an arbitrary object provided by the caller. May be
+	 *            <code>null</code>.
+	 * @param reciver
+	 *            where to send messages to. May be <code>null</code>.
+	 * @param generatedProxies
+	 *            see {@link #stateFactory(Object, HalfDynamicProxy.MessageInterface, boolean)}.
+	 * @param proxyCacheLimit
+	 *            the maximum number of remembered proxies, whose invocation 
+	 *            handler implements none of the methods of the proxy target. 
+	 *            If the limit is reached, the least recently used proxy is 
+	 *            forgotten. 0 means unlimited. Proxies with other invocation
+	 *            handlers are always remembered, therefore there is exactly 
+	 *            one such proxy per target.
+	 * @return a new initialized HDPState object. It uses the default proxy
+	 * class table (see {@link #setProxyClassTable(Class[][])}).
+	 */
+	public static HDPState stateFactory(Object userState,
+			MessageInterface reciver, boolean generatedProxies, int proxyCacheLimit) {
+		return stateFactory(userState, reciver, generatedProxies, proxyCacheLimit, proxyClassTable);
+	}
+
+	/**
+	 * Create a new state object with its own proxy class table.
+	 * 
+	 * @param userState
+	 *            an arbitrary object provided by the caller. May be
+	 *            <code>null</code>.
+	 * @param reciver
+	 *            where to send messages to. May be <code>null</code>.
+	 * @param generatedProxies
+	 *            see {@link #stateFactory(Object, HalfDynamicProxy.MessageInterface, boolean)}.
+	 * @param proxyCacheLimit
+	 *            see {@link #stateFactory(Object, HalfDynamicProxy.MessageInterface, boolean, int)}.
+	 * @param proxyClassTable
+	 *            the proxy class table of the new state. See 
+	 *            {@link #setProxyClassTable(Class[][])} for the format.
+	 * @return a new initialized HDPState object
+	 */
+	public static HDPState stateFactory(Object userState,
+			MessageInterface reciver, boolean generatedProxies, int proxyCacheLimit,
+			Class<?>[][] proxyClassTable) {
+		return stateFactory(userState, reciver, generatedProxies, proxyCacheLimit, proxyClassTable, false);
+	}
+
+	/**
+	 * Create a new state object, whose proxies may be used by concurrent 
+	 * threads, even if the proxy targets are not thread safe.
+	 * 
+	 * If <code>serialized</code> is <code>true</code>, each call of a 
+	 * proxy target method, that is forwarded by a proxy of the new state, 
+	 * holds a lock of the state. Remembered results of pure methods and the
+	 * methods of the invocation handlers don't need the lock. An invocation 
+	 * handler, that calls a method of its proxy target directly, must hold 
+	 * the lock returned by {@link #getTargetLock()}, while the target method
+	 * runs. To make sure, that no caller gets a proxy target, each object 
+	 * with an invocation handler gets a proxy. 
+	 * 
+	 * @param userState
+	 *            an arbitrary object provided by the caller. May be
+	 *            <code>null</code>.
+	 * @param reciver
+	 *            where to send messages to. May be <code>null</code>.
+	 * @param generatedProxies
+	 *            see {@link #stateFactory(Object, HalfDynamicProxy.MessageInterface, boolean)}.
+	 * @param proxyCacheLimit
+	 *            see {@link #stateFactory(Object, HalfDynamicProxy.MessageInterface, boolean, int)}.
+	 * @param proxyClassTable
+	 *            the proxy class table of the new state. See 
+	 *            {@link #setProxyClassTable(Class[][])} for the format.
+	 * @param serialized
+	 *            if <code>true</code>, serialize the calls of the proxy target methods.
+	 * @return a new initialized HDPState object
+	 */
+	public static HDPState stateFactory(Object userState,
+			MessageInterface reciver, boolean generatedProxies, int proxyCacheLimit,
+			Class<?>[][] proxyClassTable, boolean serialized) {
+		return new HDPState(userState, reciver, generatedProxies, proxyCacheLimit, proxyClassTable, serialized);
 	}
 
 	/**
-	 * @return Returns the proxyClassTable.
+	 * @return Returns the default proxyClassTable.
 	 */
 	public static Class<?>[][] getProxyClassTable() {
 		return proxyClassTable;
 	}
 
 	/**
-	 * Set the proxy class table.
+	 * Set the default proxy class table.
 	 * 
 	 * The proxyClassTable is used to select the
 	 * {@link InvocationHandlerWithTarget}, to be used for a given proxy target
@@ -166,9 +1263,14 @@ public class HalfDynamicProxy implements InvocationHandlerWithTarget {
 	 * first entry and zero or more interfaces as additional entries, that must
 	 * be implemented by the object to create a proxy for. The first matching
 	 * invocation handler is used.
+	 * <p>
+	 * The default table is used by state objects created later on. 
+	 * Existing state objects keep their table.
+	 * </p>
 	 * 
 	 * @param proxyClassTable
 	 *            The proxyClassTable to set.
+	 * @see #stateFactory(Object, HalfDynamicProxy.MessageInterface, boolean, int, Class[][])
 	 */
 	public static void setProxyClassTable(Class<?>[][] proxyClassTable) {
 		HalfDynamicProxy.proxyClassTable = proxyClassTable;
@@ -180,6 +1282,8 @@ public class HalfDynamicProxy implements InvocationHandlerWithTarget {
 	public final void setupInvocationHandler(Object target, Object state) {
 		this.target = target;
 		this.state = (HDPState) state;
+		this.dispatchTable = this.state.getDispatchTable(this.getClass());
+		this.dispatchTable.addInterfacesOf(target.getClass());
 	}
 
 	/**
@@ -191,10 +1295,30 @@ public class HalfDynamicProxy implements InvocationHandlerWithTarget {
 
 	/**
 	 * Get the dynamic proxy for this object.
-	 * @return an instance of {@link Proxy}.
+	 * @return an instance of {@link Proxy} or of a generated proxy class.
+	 */
+	public Object dynamicProxyInstance() {
+		Object proxy = state.proxyCache.get(this.target);
+		if (proxy == null && state.boundedProxyCache != null) {
+			// the proxy might have been evicted. A new one is equivalent.
+			proxy = getHDPProxy(this.target, null, state);
+		}
+		return proxy;
+	}
+
+	/**
+	 * Get the lock, that must be held while a method of the proxy target 
+	 * gets called directly by this invocation handler. The lock must not 
+	 * be held, while a method of a proxy or of another invocation handler 
+	 * gets called, because it could dead lock.
+	 * 
+	 * @return the lock of the state, if the calls of the proxy targets are 
+	 * serialized (see {@link HDPState#isSerialized()}), otherwise this 
+	 * invocation handler.
 	 */
-	public Proxy dynamicProxyInstance() {
-		return (Proxy) state.proxyCache.get(this.target);
+	protected final Object getTargetLock() {
+		Object lock = state.targetLock;
+		return lock != null ? lock : this;
 	}
 
 	/**
@@ -223,15 +1347,63 @@ public class HalfDynamicProxy implements InvocationHandlerWithTarget {
 		return getHDPProxy(obj, expect, state);
 	}
 
+	/**
+	 * Get the proxy for an object using the same state as a given 
+	 * invocation handler uses.
+	 * 
+	 * This method is used by generated proxy classes.
+	 * 
+	 * @param obj the object to create a proxy for
+	 * @param expect the expected type of the object
+	 * @param handler the invocation handler
+	 * @return the proxy object, or obj itself.
+	 * @see #getHDPProxy(Object, Class)
+	 */
+	public static Object getHDPProxy(Object obj, Class<?> expect, HalfDynamicProxy handler) {
+		return getHDPProxy(obj, expect, handler.state);
+	}
+
+	/**
+	 * Test, if an object is a proxy.
+	 * 
+	 * @param obj an object
+	 * @return <code>true</code>, if <code>obj</code> is an instance of
+	 * {@link Proxy} or of a generated proxy class.
+	 */
+	public static boolean isProxy(Object obj) {
+		return obj instanceof GeneratedProxy || Proxy.isProxyClass(obj.getClass());
+	}
+
+	/**
+	 * Get the invocation handler of a proxy.
+	 * 
+	 * @param proxy an object
+	 * @return the invocation handler, if <code>proxy</code> is a proxy and
+	 * its invocation handler implements the {@link InvocationHandlerWithTarget} 
+	 * interface. Otherwise <code>null</code>.
+	 */
+	public static InvocationHandlerWithTarget getInvocationHandler(Object proxy) {
+		if (proxy instanceof GeneratedProxy) {
+			return ((GeneratedProxy) proxy).getInvocationHandlerWithTarget();
+		}
+		if (proxy instanceof Proxy) {
+			InvocationHandler invocationHandler = Proxy.getInvocationHandler(proxy);
+			if (invocationHandler instanceof InvocationHandlerWithTarget) {
+				return (InvocationHandlerWithTarget) invocationHandler;
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Get the dynamic proxy for an object.
 	 * 
 	 *  If obj is an array, this method 
-	 * is called recursively on each element of the array.
+	 * is called recursively on each element of the array. 
 	 * No proxy is generated, if <code>obj</code> is <code>null</code> or primitive
 	 * or, if <code>obj</code> is already a dynamic proxy, or, if
 	 * no {@link InvocationHandlerWithTarget} implementation is found in the 
-	 * {@link #proxyClassTable} (see {@link #setProxyClassTable(Class[][])}). 
+	 * proxy class table of the state (see {@link #setProxyClassTable(Class[][])}). 
 	 *
 	 * @param obj the object to create a proxy for.
 	 * @param expect the expected type of the object,
@@ -239,101 +1411,104 @@ public class HalfDynamicProxy implements InvocationHandlerWithTarget {
 	 * <code>null</code>, then the type of obj is used instead of expect.
 	 * @param state the state object for the proxy
 	 * @return the proxy object, or obj itself.
+	 * @throws IllegalStateException if the state has been closed.
 	 * @see #setProxyClassTable(Class[][])
 	 */
 	public static Object getHDPProxy(final Object obj, Class<?> expect, HDPState state) {
 		if (obj == null) {
 			return null;
 		}
+		if (state.closed) {
+			throw new IllegalStateException("The proxy state has been closed");
+		}
 
 		// array handling
 		if (obj instanceof Object[]) {
-			Object[] arr = (Object[]) obj;
 			if (null == expect || Object.class == expect) {
 				// no explicit specification, use the type of the
 				// array
 				expect = obj.getClass();
 			}
-			Class<?> componentType = expect.getComponentType();
-			boolean isProxy = true;
-			for (int i = 0; i < arr.length; i++) {
-				if (arr[i] != getHDPProxy(arr[i], componentType, state))
-					isProxy = false;
-			}
-			if (isProxy)
-				return obj;
-			Object[] arr2 = (Object[]) Array.newInstance(componentType,
-					arr.length);
-			for (int i = 0; i < arr.length; i++) {
-				arr2[i] = getHDPProxy(arr[i], componentType, state);
-			}
-			return arr2;
+			return getHDPProxyArray((Object[]) obj, expect.getComponentType(), state);
 		}
 
-		Class<?> cls = obj.getClass();
-		if (Proxy.isProxyClass(cls)) {
-			// is already a proxy
+		Resolution resolution = state.getResolution(obj.getClass());
+		if (resolution.handlerClass == null) {
+			// no proxy required
 			return obj;
 		}
-		if (cls.isPrimitive() || obj instanceof String) {
+		// try to find an existing decorator
+		IdentityCache<Object> decoratorMap = state.getProxyCache(resolution);
+		Object decorator = decoratorMap.get(obj);
+		if (decorator != null) {
+			return decorator;
+		}
+		if (resolution.probes != null && !isProxyRequired(obj, resolution, 0, state)) {
+			// the object never leads to a filtered object 
 			return obj;
 		}
-		// try to find an existing decorator
-		Map<Object, Object> decoratorMap = state.proxyCache;
-		synchronized (decoratorMap) {
-
-			Object decorator = decoratorMap.get(obj);
-			if (decorator != null) {
-				return decorator;
-			}
-			// find the right class
-			Class<?> invocationHandlerClass = null;
-			for (int i = 0; i < proxyClassTable.length; i++) {
-				// assert, that the row is valid
-				if (proxyClassTable[i] == null
-						|| proxyClassTable[i].length < 1
-						|| !InvocationHandlerWithTarget.class
-								.isAssignableFrom(proxyClassTable[i][0])) {
-					throw new ClassCastException(
-							"invalid proxy class at index " + i);
-				}
-				// loop over all required interfaces
-				int j;
-				for (j = 1; j < proxyClassTable[i].length; j++) {
-					if (!proxyClassTable[i][j].isInstance(obj))
-						break;
-				}
-				if (j >= proxyClassTable[i].length) {
-					// we got it
-					invocationHandlerClass = proxyClassTable[i][0];
-					break;
-				}
-			}
-
-			if (invocationHandlerClass == null) {
-				// state.debug("no invocation Handler for object of class:
-				// "+cls.getName());
-				return obj;
+		InvocationHandlerWithTarget invokationHandler = null;
+		Object proxy;
+		try {
+			invokationHandler = (InvocationHandlerWithTarget) resolution.handlerConstructor
+					.newInstance((Object[]) null);
+			invokationHandler.setupInvocationHandler(obj, state);
+			Constructor<?> constructor = null;
+			if (state.generatedProxies) {
+				constructor = resolution.getGeneratedConstructor(state);
 			}
-			InvocationHandlerWithTarget invokationHandler = null;
-			try {
-				invokationHandler = (InvocationHandlerWithTarget) invocationHandlerClass
-						.newInstance();
-				invokationHandler.setupInvocationHandler(obj, state);
-			} catch (RuntimeException e) {
-				throw e;
-			} catch (Exception e) {
-				e.printStackTrace();
-				throw new RuntimeException(e);
+			if (constructor != null) {
+				proxy = constructor.newInstance(new Object[] { invokationHandler, obj });
+			} else {
+				proxy = resolution.proxyConstructor.newInstance(new Object[] { invokationHandler });
 			}
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getTargetException();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new RuntimeException(e);
+		}
+		// state.debug("created proxy: "+resolution.handlerClass.getName()+"
+		// "+obj.toString());
+		// another thread might have created a proxy concurrently
+		decorator = decoratorMap.putIfAbsent(obj, proxy);
+		return decorator != null ? decorator : proxy;
+	}
 
-			Object proxy = Proxy.newProxyInstance(cls.getClassLoader(), cls
-					.getInterfaces(), invokationHandler);
-			// state.debug("created proxy: "+invocationHandlerClass.getName()+"
-			// "+obj.toString());
-			decoratorMap.put(obj, proxy);
-			return proxy;
+	/**
+	 * Get the dynamic proxy for an array.
+	 * 
+	 * @param arr the array
+	 * @param componentType the expected component type. 
+	 * @param state the state object for the proxy
+	 * @return the wrapped array, or arr itself, if no element needs a proxy.
+	 * @see #getHDPProxy(Object, Class, HalfDynamicProxy.HDPState)
+	 */
+	private static Object[] getHDPProxyArray(Object[] arr, Class<?> componentType, HDPState state) {
+		if (arr.length == 0) {
+			return arr;
+		}
+		// The javadoc core creates a new array on almost each call, 
+		// therefore the wrapped arrays are not remembered.
+		Object[] arr2 = null;
+		for (int i = 0; i < arr.length; i++) {
+			Object element = getHDPProxy(arr[i], componentType, state);
+			if (arr2 == null) {
+				if (element == arr[i])
+					continue;
+				arr2 = (Object[]) Array.newInstance(componentType, arr.length);
+				System.arraycopy(arr, 0, arr2, 0, i);
+			}
+			arr2[i] = element;
 		}
+		return arr2 != null ? arr2 : arr;
 	}
 
 	/* (non-Javadoc)
@@ -341,30 +1516,196 @@ public class HalfDynamicProxy implements InvocationHandlerWithTarget {
 	 */
 	public Object invoke(Object proxy, Method method, Object[] args)
 			throws Throwable {
-		Method m = null;
-		Object methodTarget = null;
-		boolean isProxyRequired = false;
-		try {
-			m = this.getClass().getMethod(method.getName(),
-					method.getParameterTypes());
-			methodTarget = this;
-			// state.debug("found replacement method "+m);
-		} catch (NoSuchMethodException e) {
-			m = method;
-			methodTarget = this.target;
-			isProxyRequired = true;
-			// state.debug("no replacement method "+m);
+		Dispatch dispatch = dispatchTable.get(method);
+		if (dispatch.memoSlot < 0) {
+			return invokeDispatch(dispatch, args);
+		}
+		// a pure method
+		Object key = args == null || args.length == 0 ? NO_ARGS : Arrays.asList(args);
+		Object result = getMemo(dispatch, key);
+		if (result == null) {
+			dispatch.memoMisses.incrementAndGet();
+			result = invokeDispatch(dispatch, args);
+			if (state.boundedProxyCache == null || !refersToEvictableProxy(result, state)) {
+				// don't keep evictable proxies alive
+				Object value = result;
+				if (value == null) {
+					value = NULL_RESULT;
+				} else if (value instanceof Object[] && ((Object[]) value).length > 0) {
+					// the caller might modify the returned array
+					value = ((Object[]) value).clone();
+				}
+				putMemo(dispatch, key, value);
+			}
+		} else {
+			dispatch.memoHits.incrementAndGet();
+			if (result == NULL_RESULT)
+				return null;
+			if (result instanceof Object[] && ((Object[]) result).length > 0) {
+				// the caller might modify the array
+				return ((Object[]) result).clone();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Call the method of a dispatch decision.
+	 * 
+	 * @param dispatch the dispatch decision
+	 * @param args the arguments
+	 * @return the result
+	 * @throws Throwable
+	 */
+	private Object invokeDispatch(Dispatch dispatch, Object[] args) throws Throwable {
+		if (dispatch.isOverride) {
+			try {
+				return dispatch.method.invoke(this, args);
+			} catch (InvocationTargetException e) {
+				throw e.getTargetException();
+			}
 		}
+		Forwarder forwarder = dispatch.getForwarder(this.state.generatedClasses);
 		Object result;
-		try {
-			result = m.invoke(methodTarget, args);
-		} catch (InvocationTargetException e) {
-			throw e.getTargetException();
+		Object lock = state.targetLock;
+		if (lock == null) {
+			result = forwarder.forward(this.target, args);
+		} else {
+			synchronized (lock) {
+				result = forwarder.forward(this.target, args);
+			}
 		}
-		if (isProxyRequired) {
-			result = getHDPProxy(result, m.getReturnType());
+		switch (dispatch.resultKind) {
+		case Dispatch.RESULT_NONE:
+			return result;
+		case Dispatch.RESULT_ARRAY:
+			if (result == null)
+				return null;
+			return getHDPProxyArray((Object[]) result, dispatch.method.getReturnType().getComponentType(), state);
+		default:
+			return getHDPProxy(result, dispatch.method.getReturnType(), state);
+		}
+	}
+
+	/**
+	 * Test, if a result is or contains a proxy, that might be evicted from
+	 * the bounded proxy cache.
+	 * 
+	 * @param result the result of a method
+	 * @param state the state, that owns the bounded proxy cache
+	 * @return <code>true</code>, if the result refers to a proxy with a 
+	 * transparent invocation handler.
+	 */
+	private static boolean refersToEvictableProxy(Object result, HDPState state) {
+		if (result instanceof Object[]) {
+			Object[] array = (Object[]) result;
+			for (int i = 0; i < array.length; i++) {
+				if (refersToEvictableProxy(array[i], state))
+					return true;
+			}
+			return false;
+		}
+		InvocationHandlerWithTarget handler = getInvocationHandler(result);
+		return handler != null 
+			&& state.getResolution(handler.getInvocationTarget().getClass()).transparent;
+	}
+
+	/**
+	 * Get a remembered result.
+	 * 
+	 * @param dispatch the dispatch decision of a pure method
+	 * @param key the argument list
+	 * @return the result or <code>null</code>, if there is no remembered result.
+	 */
+	private Object getMemo(Dispatch dispatch, Object key) {
+		Object[] m = this.memo;
+		if (m == null || dispatch.memoSlot >= m.length)
+			return null;
+		Object value = m[dispatch.memoSlot];
+		if (value != null && dispatch.memoByArgs) {
+			value = ((Map<?,?>) value).get(key);
+		}
+		return value;
+	}
+
+	/**
+	 * Remember a result.
+	 * 
+	 * @param dispatch the dispatch decision of a pure method
+	 * @param key the argument list
+	 * @param value the result
+	 */
+	private synchronized void putMemo(Dispatch dispatch, Object key, Object value) {
+		Object[] m = this.memo;
+		int slot = dispatch.memoSlot;
+		if (dispatch.memoByArgs && m != null && slot < m.length && m[slot] != null) {
+			// the map is already published
+			putMemoByArgs(m[slot], key, value);
+			return;
+		}
+		// copy on write
+		int length = Math.max(slot + 1, dispatchTable.getMemoSlotCount());
+		Object[] m2 = new Object[m != null ? Math.max(length, m.length) : length];
+		if (m != null)
+			System.arraycopy(m, 0, m2, 0, m.length);
+		if (dispatch.memoByArgs) {
+			m2[slot] = new ConcurrentHashMap<Object, Object>();
+			putMemoByArgs(m2[slot], key, value);
+		} else {
+			m2[slot] = value;
+		}
+		this.memo = m2;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void putMemoByArgs(Object map, Object key, Object value) {
+		((Map<Object, Object>) map).put(key, value);
+	}
+
+	/**
+	 * Forget all remembered results of pure methods. 
+	 * 
+	 * Call this method, if the proxy target changes in a way, that affects
+	 * the result of a pure method.
+	 * 
+	 * @see PureMethods
+	 */
+	protected synchronized void clearMemo() {
+		this.memo = null;
+	}
+
+	/**
+	 * Report the hit and miss counters of all pure methods.
+	 * 
+	 * The counters are summed up over all proxies of a state object. 
+	 * Call this method before the state gets closed.
+	 * 
+	 * @param state the state object
+	 * @param reciver where to send the report to. 
+	 * @see PureMethods
+	 */
+	public static void reportMemoStatistics(HDPState state, MessageInterface reciver) {
+		for (Iterator<Map.Entry<Class<?>, DispatchTable>> tables = state.dispatchTables.entrySet().iterator(); tables.hasNext(); ) {
+			Map.Entry<Class<?>, DispatchTable> entry = tables.next();
+			String handlerName = entry.getKey().getName();
+			handlerName = handlerName.substring(handlerName.lastIndexOf('.') + 1);
+			for (Iterator<Dispatch> dispatches = entry.getValue().table.values().iterator(); dispatches.hasNext(); ) {
+				Dispatch dispatch = dispatches.next();
+				if (dispatch.memoSlot < 0)
+					continue;
+				Method m = dispatch.method;
+				StringBuffer sb = new StringBuffer(handlerName).append(": ").append(m.getName()).append('(');
+				Class<?>[] parameterTypes = m.getParameterTypes();
+				for (int i = 0; i < parameterTypes.length; i++) {
+					if (i > 0)
+						sb.append(", ");
+					sb.append(parameterTypes[i].getName());
+				}
+				sb.append(") hits: ").append(dispatch.memoHits.get())
+						.append(" misses: ").append(dispatch.memoMisses.get());
+				reciver.emitMessage(sb.toString(), MessageInterface.PRIORITY_DEBUG);
+			}
 		}
-		return result;
 	}
 
 	/**
@@ -376,12 +1717,9 @@ public class HalfDynamicProxy implements InvocationHandlerWithTarget {
 	 * that case the target object will be returned.
 	 */
 	protected static Object unwrap(Object proxy) {
-		if (proxy instanceof Proxy) {
-			InvocationHandler invocationHandler = Proxy.getInvocationHandler(proxy);
-			if (invocationHandler instanceof InvocationHandlerWithTarget) {
-				 return ((InvocationHandlerWithTarget)invocationHandler)
-				 .getInvocationTarget();
-			}
+		InvocationHandlerWithTarget invocationHandler = getInvocationHandler(proxy);
+		if (invocationHandler != null) {
+			return invocationHandler.getInvocationTarget();
 		}
 		return proxy;
 	}
@@ -393,7 +1731,10 @@ public class HalfDynamicProxy implements InvocationHandlerWithTarget {
 	 * @see java.lang.Object#equals(java.lang.Object)
 	 */
 	public boolean equals(Object obj) {
-		return target.equals(unwrap(obj));
+		Object other = unwrap(obj);
+		synchronized (getTargetLock()) {
+			return target.equals(other);
+		}
 	}
 
 	/**
@@ -402,7 +1743,9 @@ public class HalfDynamicProxy implements InvocationHandlerWithTarget {
 	 * @see java.lang.Object#hashCode()
 	 */
 	public int hashCode() {
-		return target.hashCode();
+		synchronized (getTargetLock()) {
+			return target.hashCode();
+		}
 	}
 
 	/** 
@@ -410,7 +1753,9 @@ public class HalfDynamicProxy implements InvocationHandlerWithTarget {
 	 * @see java.lang.Object#toString()
 	 */
 	public String toString() {
-		return target.toString();
+		synchronized (getTargetLock()) {
+			return target.toString();
+		}
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,56 @@
+/*
+ *  PublishedApiDoclet - a filter proxy for any javadoc doclet
+ *
+ *  Copyright (C) 2010  Anselm Kruis <a.kruis@science-computing.de>
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+
+package de.kruis.padoclet.util;
+
+/**
+ * A cache, that compares keys by identity.
+ *
+ * @author kruis
+ * @see WeakIdentityCache
+ * @see BoundedIdentityCache
+ */
+interface IdentityCache<V> {
+
+	/**
+	 * Get the value for a key.
+	 *
+	 * @param key the key
+	 * @return the value or <code>null</code>, if the cache contains no
+	 * value for <code>key</code>.
+	 */
+	V get(Object key);
+
+	/**
+	 * Add a value, unless the cache already contains a value for the key.
+	 *
+	 * @param key the key. Must not be <code>null</code>.
+	 * @param value the value. Must not be <code>null</code>.
+	 * @return the value already contained in the cache or <code>null</code>,
+	 * if <code>value</code> has been added.
+	 */
+	V putIfAbsent(Object key, V value);
+
+	/**
+	 * Remove all entries.
+	 */
+	void clear();
+}
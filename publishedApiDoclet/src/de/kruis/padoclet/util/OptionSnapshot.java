@@ -0,0 +1,335 @@
+/*
+ *  PublishedApiDoclet - a filter proxy for any javadoc doclet
+ *
+ *  Copyright (C) 2010  Anselm Kruis <a.kruis@science-computing.de>
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package de.kruis.padoclet.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+/**
+ * The values of a set of options, compiled from the command line.
+ *
+ * <p>
+ * A snapshot is immutable. It doesn't change the registered
+ * {@link AbstractOption} objects, therefore it can be shared by all
+ * threads of a doclet run. The registered options are indexed by their
+ * prefixed names, so that looking up a command line token is a single
+ * hash lookup.
+ * </p>
+ * <p>
+ * Use {@link #compile(String[][], Map)} to get the snapshot for a
+ * particular command line. Use {@link #applyTo(Object)} to assign the
+ * option values to the matching properties of a doclet.
+ * </p>
+ *
+ * @author kruis
+ */
+public final class OptionSnapshot {
+
+	/**
+	 * the registered options. The key is the decapitalized option name.
+	 */
+	private final Map<String, AbstractOption> options;
+
+	/**
+	 * the registered options. The key is a prefixed option name, as it
+	 * might appear on the command line.
+	 */
+	private final Map<String, AbstractOption> prefixIndex;
+
+	/**
+	 * the command line, this snapshot has been compiled from.
+	 */
+	private final String[][] docletOptions;
+
+	/**
+	 * the default values, that replace the default values of the
+	 * registered options.
+	 */
+	private final Map<String, String> defaults;
+
+	/**
+	 * the option values. The key is the decapitalized option name.
+	 */
+	private final Map<String, String> values;
+
+	/**
+	 * the tag names, see {@link #getTags()}.
+	 */
+	private final Set<String> tags;
+
+	/**
+	 * Create the snapshot for an empty command line.
+	 *
+	 * @param options the registered options. The key is the decapitalized
+	 * option name. The map is copied.
+	 */
+	public OptionSnapshot(Map<String, AbstractOption> options) {
+		this.options = Collections.unmodifiableMap(new HashMap<String, AbstractOption>(options));
+		Map<String, AbstractOption> prefixIndex = new HashMap<String, AbstractOption>();
+		Iterator<Map.Entry<String, AbstractOption>> iterator = options.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, AbstractOption> entry = iterator.next();
+			String key = entry.getKey();
+			AbstractOption option = entry.getValue();
+			// all names, that decapitalize to the key
+			prefixIndex.put(option.namePrefix + key, option);
+			if (key.length() > 0) {
+				String capitalized = Character.toUpperCase(key.charAt(0)) + key.substring(1);
+				if (AbstractOption.decapitalize(capitalized).equals(key))
+					prefixIndex.put(option.namePrefix + capitalized, option);
+			}
+		}
+		this.prefixIndex = prefixIndex;
+		this.docletOptions = new String[0][];
+		this.defaults = Collections.emptyMap();
+		this.values = compileValues(this.options, this.docletOptions, this.defaults, prefixIndex);
+		this.tags = compileTags(this.options, this.values);
+	}
+
+	/**
+	 * Create the snapshot for a command line.
+	 *
+	 * @param base a snapshot of the same registered options
+	 * @param docletOptions the command line
+	 * @param defaults the default values
+	 */
+	private OptionSnapshot(OptionSnapshot base, String[][] docletOptions, Map<String, String> defaults) {
+		this.options = base.options;
+		this.prefixIndex = base.prefixIndex;
+		this.docletOptions = copy(docletOptions);
+		this.defaults = defaults;
+		this.values = compileValues(this.options, this.docletOptions, defaults, prefixIndex);
+		this.tags = compileTags(this.options, this.values);
+	}
+
+	/**
+	 * Get the snapshot for a command line.
+	 *
+	 * @param docletOptions the options as provided by the javadoc core.
+	 * @param defaults default values, that replace the default values
+	 * of the registered options. The key is the option name. May be
+	 * <code>null</code>.
+	 * @return a snapshot of the same registered options. If the command
+	 * line and the defaults are equal to those of this snapshot, this
+	 * snapshot is returned.
+	 * @see com.sun.javadoc.Doclet#validOptions(java.lang.String[][], com.sun.javadoc.DocErrorReporter)
+	 * @see com.sun.javadoc.RootDoc#options()
+	 */
+	public OptionSnapshot compile(String[][] docletOptions, Map<String, String> defaults) {
+		Map<String, String> decapitalizedDefaults = new HashMap<String, String>();
+		if (defaults != null) {
+			Iterator<Map.Entry<String, String>> iterator = defaults.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<String, String> entry = iterator.next();
+				decapitalizedDefaults.put(AbstractOption.decapitalize(entry.getKey()), entry.getValue());
+			}
+		}
+		if (Arrays.deepEquals(this.docletOptions, docletOptions) && this.defaults.equals(decapitalizedDefaults))
+			return this;
+		return new OptionSnapshot(this, docletOptions, Collections.unmodifiableMap(decapitalizedDefaults));
+	}
+
+	/**
+	 * Get a registered option by name.
+	 *
+	 * @param name the name of the option.
+	 * @return the option object or <code>null</code>, if no option with
+	 * the given name was registered. Don't use its value, use
+	 * {@link #getString(String)} instead.
+	 */
+	public AbstractOption getOption(String name) {
+		return options.get(AbstractOption.decapitalize(name));
+	}
+
+	/**
+	 * Get a registered option by its prefixed name.
+	 *
+	 * @param prefixedName the name of the option including the namePrefix.
+	 * @return the option or <code>null</code>, if no matching option exists.
+	 */
+	public AbstractOption getWithPrefix(String prefixedName) {
+		if (prefixedName == null)
+			return null;
+		return prefixIndex.get(prefixedName);
+	}
+
+	/**
+	 * Get the number of parameters an option takes.
+	 *
+	 * @param prefixedName the name of the option including the namePrefix.
+	 * @return 1, if the option takes no parameters, 2, if the option takes
+	 * a parameter. If the option is unknown, return 0.
+	 */
+	public int optionLength(String prefixedName) {
+		AbstractOption option = getWithPrefix(prefixedName);
+		if (option == null)
+			return 0;
+		return option.isBoolean ? 1 : 2;
+	}
+
+	/**
+	 * Get the value of an option.
+	 *
+	 * @param name the name of the option.
+	 * @return the value or <code>null</code>, if no option with the given
+	 * name was registered. For boolean options the values <code>"true"</code>
+	 * and <code>"false"</code> are used.
+	 */
+	public String getString(String name) {
+		return values.get(AbstractOption.decapitalize(name));
+	}
+
+	/**
+	 * Is a boolean option given?
+	 *
+	 * @param name the name of the option.
+	 * @return <code>true</code>, if the value of the option is
+	 * <code>"true"</code>.
+	 */
+	public boolean isSet(String name) {
+		return Boolean.valueOf(getString(name)).booleanValue();
+	}
+
+	/**
+	 * Get the value of an integer option.
+	 *
+	 * @param name the name of the option.
+	 * @return the value
+	 * @throws NumberFormatException if the value is not an integer.
+	 */
+	public int getInt(String name) {
+		return Integer.parseInt(getString(name));
+	}
+
+	/**
+	 * Get all tags.
+	 *
+	 * @return an unmodifiable set containing all tag names, that is the
+	 * values of all options where the property <code>isTag</code> is set.
+	 */
+	public Set<String> getTags() {
+		return tags;
+	}
+
+	/**
+	 * Assign the option values to matching bean properties.
+	 *
+	 * For each setable property of the Java bean, this method looks for an
+	 * option with the same name. If such an option exists, the property is
+	 * set to the value of the option. Currently only properties of the types
+	 * <code>String</code>, <code>boolean</code> and <code>int</code> are
+	 * supported.
+	 *
+	 * @param bean a java bean
+	 * @throws Throwable any exception thrown by a setter method.
+	 */
+	public void applyTo(Object bean) throws Throwable {
+		Method[] setters = AbstractOption.getPropertySetters(bean.getClass());
+		for (int i = 0; i < setters.length; i++) {
+			String name = AbstractOption.getPropertyName(setters[i]);
+			if (!options.containsKey(name))
+				continue;
+			Object value = AbstractOption.convert(setters[i].getParameterTypes()[0], values.get(name));
+			try {
+				setters[i].invoke(bean, new Object[] { value });
+			} catch (InvocationTargetException e) {
+				throw e.getTargetException();
+			}
+		}
+	}
+
+	/**
+	 * Compute the option values.
+	 *
+	 * @param options the registered options
+	 * @param docletOptions the command line
+	 * @param defaults the default values, that replace the defaults of the
+	 * registered options
+	 * @param prefixIndex the prefix index of the registered options
+	 * @return an unmodifiable map of the values
+	 */
+	private static Map<String, String> compileValues(Map<String, AbstractOption> options,
+			String[][] docletOptions, Map<String, String> defaults, Map<String, AbstractOption> prefixIndex) {
+		Map<String, String> values = new HashMap<String, String>();
+		Iterator<Map.Entry<String, AbstractOption>> iterator = options.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, AbstractOption> entry = iterator.next();
+			String key = entry.getKey();
+			values.put(key, defaults.containsKey(key) ? defaults.get(key) : entry.getValue().defaultValue);
+		}
+		for (int i = 0; i < docletOptions.length; i++) {
+			AbstractOption option = docletOptions[i].length > 0 ? prefixIndex.get(docletOptions[i][0]) : null;
+			if (option == null)
+				continue;
+			String key = AbstractOption.decapitalize(option.name);
+			if (option.isBoolean) {
+				values.put(key, Boolean.toString(true));
+			} else if (docletOptions[i].length > 1) {
+				values.put(key, docletOptions[i][1]);
+			}
+		}
+		return Collections.unmodifiableMap(values);
+	}
+
+	/**
+	 * Compute the tag names.
+	 *
+	 * @param options the registered options
+	 * @param values the option values
+	 * @return an unmodifiable set of the tag names
+	 */
+	private static Set<String> compileTags(Map<String, AbstractOption> options, Map<String, String> values) {
+		Set<String> tags = new HashSet<String>();
+		Iterator<Map.Entry<String, AbstractOption>> iterator = options.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, AbstractOption> entry = iterator.next();
+			if (!entry.getValue().isTag)
+				continue;
+			StringTokenizer tokenizer = new StringTokenizer(values.get(entry.getKey()), AbstractOption.TAG_DELIMITER);
+			while (tokenizer.hasMoreTokens()) {
+				tags.add(tokenizer.nextToken());
+			}
+		}
+		return Collections.unmodifiableSet(tags);
+	}
+
+	/**
+	 * Copy a command line, because the caller might modify it.
+	 *
+	 * @param docletOptions the command line
+	 * @return the copy
+	 */
+	private static String[][] copy(String[][] docletOptions) {
+		String[][] result = new String[docletOptions.length][];
+		for (int i = 0; i < docletOptions.length; i++) {
+			result[i] = docletOptions[i].clone();
+		}
+		return result;
+	}
+}
@@ -0,0 +1,988 @@
+/*
+ *  PublishedApiDoclet - a filter proxy for any javadoc doclet
+ *
+ *  Copyright (C) 2010  Anselm Kruis <a.kruis@science-computing.de>
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package de.kruis.padoclet.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates proxy classes at runtime.
+ *
+ * A generated proxy class implements a set of interfaces and the interface
+ * {@link HalfDynamicProxy.GeneratedProxy}. Its constructor takes the invocation
+ * handler and the proxy target. Methods implemented by the invocation handler
+ * are called directly on the invocation handler, all other methods are
+ * called directly on the proxy target, unless the calls of the proxy targets
+ * are serialized (see {@link HalfDynamicProxy.HDPState#isSerialized()}). Therefore a call on a generated proxy
+ * involves neither argument boxing nor {@link Method#invoke(Object, Object[])}.
+ *
+ * <p>
+ * In addition this class generates forwarders (see {@link HalfDynamicProxy.Forwarder}). 
+ * A forwarder calls a single interface method without reflection. 
+ * </p>
+ *
+ * <p>
+ * The generated classes use the class file format of java 1.5. Each class is
+ * defined by its own class loader, whose parent is the class loader of the
+ * invocation handler class or of the class HalfDynamicProxy respectively.
+ * </p>
+ *
+ * @author kruis
+ */
+final class ProxyClassGenerator {
+
+	/**
+	 * the package of the generated classes
+	 */
+	private static final String PACKAGE_NAME = "de.kruis.padoclet.util.generated.";
+
+	/**
+	 * used to create unique class names
+	 */
+	private static final AtomicInteger classCounter = new AtomicInteger();
+
+	/**
+	 * the name of the static field, that holds the methods called via
+	 * {@link HalfDynamicProxy#invoke(Object, Method, Object[])}.
+	 */
+	private static final String METHODS_FIELD = "hdpMethods";
+
+	/**
+	 * Holds the result of a generator run.
+	 */
+	private static final class Entry {
+		/**
+		 * the constructor of the generated class or <code>null</code>, if
+		 * no class could be generated.
+		 */
+		final Constructor<?> constructor;
+
+		Entry(Constructor<?> constructor) {
+			this.constructor = constructor;
+		}
+	}
+
+	/**
+	 * Holds the generated classes of a proxy state. The generated code 
+	 * depends on the proxy class table of the state, therefore each state
+	 * has a cache of its own.
+	 */
+	static final class Cache {
+		/**
+		 * The key is a list, that contains the handler class followed by 
+		 * the interfaces.
+		 */
+		private final ConcurrentHashMap<List<Class<?>>, Entry> entries = new ConcurrentHashMap<List<Class<?>>, Entry>();
+
+		/**
+		 * where to report a failed class generation.
+		 */
+		private final HalfDynamicProxy.MessageInterface reciver;
+
+		/**
+		 * if <code>true</code>, the generated proxies don't call the proxy 
+		 * targets directly. See {@link HalfDynamicProxy.HDPState#isSerialized()}.
+		 */
+		private final boolean serialized;
+
+		/**
+		 * <code>true</code>, after a failed class generation has been reported.
+		 */
+		private final AtomicBoolean failureReported = new AtomicBoolean();
+
+		/**
+		 * Create a new cache.
+		 * 
+		 * @param reciver where to report a failed class generation. Must not 
+		 * be <code>null</code>.
+		 * @param serialized if <code>true</code>, the generated proxies call 
+		 * the proxy target methods via {@link HalfDynamicProxy#invoke(Object, Method, Object[])},
+		 * which holds the lock of the state.
+		 */
+		Cache(HalfDynamicProxy.MessageInterface reciver, boolean serialized) {
+			this.reciver = reciver;
+			this.serialized = serialized;
+		}
+
+		/**
+		 * Forget all generated classes.
+		 */
+		void clear() {
+			entries.clear();
+		}
+
+		/**
+		 * Report a failed class generation. Only the first failure gets
+		 * reported, because a broken generator usually fails for every class.
+		 * 
+		 * @param what the class, that could not be generated
+		 * @param e the cause
+		 */
+		void reportFailure(String what, Throwable e) {
+			if (failureReported.compareAndSet(false, true)) {
+				reciver.emitMessage("Failed to generate " + what 
+						+ ", using reflection instead: " + e, 
+						HalfDynamicProxy.MessageInterface.PRIORITY_WARN);
+			}
+		}
+	}
+
+	/**
+	 * The class loader used to define a generated class.
+	 */
+	private static final class GeneratedClassLoader extends ClassLoader {
+		GeneratedClassLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		Class<?> define(String name, byte[] b) {
+			return defineClass(name, b, 0, b.length);
+		}
+	}
+
+	/**
+	 * This class is not intended to be instantiated.
+	 */
+	private ProxyClassGenerator() {
+	}
+
+	/**
+	 * Get the constructor of a generated proxy class.
+	 *
+	 * @param handlerClass the invocation handler class.
+	 * @param interfaces the interfaces to be implemented by the proxy class.
+	 * @param dispatchTable the dispatch table of the handler class.
+	 * @param cache holds the classes generated so far.
+	 * @return the constructor. It takes two arguments, the invocation handler
+	 * and the proxy target. Returns <code>null</code>, if it is not possible to
+	 * generate a class for the given combination of handler class and interfaces,
+	 * i.e. because a class is not public.
+	 */
+	static Constructor<?> getProxyConstructor(Class<?> handlerClass, Class<?>[] interfaces,
+			HalfDynamicProxy.DispatchTable dispatchTable, Cache cache) {
+		List<Class<?>> key = new ArrayList<Class<?>>(interfaces.length + 1);
+		key.add(handlerClass);
+		key.addAll(Arrays.asList(interfaces));
+		Entry entry = cache.entries.get(key);
+		if (entry == null) {
+			Constructor<?> constructor = null;
+			try {
+				constructor = generate(handlerClass, interfaces, dispatchTable, cache.serialized);
+			} catch (Exception e) {
+				// fall back to java.lang.reflect.Proxy
+				cache.reportFailure("the proxy class for " + handlerClass.getName(), e);
+				constructor = null;
+			} catch (LinkageError e) {
+				cache.reportFailure("the proxy class for " + handlerClass.getName(), e);
+				constructor = null;
+			}
+			entry = new Entry(constructor);
+			Entry existing = cache.entries.putIfAbsent(key, entry);
+			if (existing != null)
+				entry = existing;
+		}
+		return entry.constructor;
+	}
+
+	/**
+	 * Test, if a class is accessible by a generated class.
+	 *
+	 * @param cls the class
+	 * @param loader the parent class loader of the generated class
+	 * @return <code>true</code>, if the class is public and visible
+	 */
+	private static boolean isAccessible(Class<?> cls, ClassLoader loader) {
+		while (cls.isArray())
+			cls = cls.getComponentType();
+		if (cls.isPrimitive())
+			return true;
+		if (!Modifier.isPublic(cls.getModifiers()))
+			return false;
+		try {
+			return Class.forName(cls.getName(), false, loader) == cls;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Collect the methods to be implemented by a proxy class.
+	 *
+	 * @param interfaces the interfaces
+	 * @param loader the parent class loader of the generated class
+	 * @return the methods, or <code>null</code>, if a type used by a method
+	 * is not accessible.
+	 */
+	private static Map<String, Method> collectMethods(Class<?>[] interfaces, ClassLoader loader) {
+		// Methods with the same name and descriptor are implemented only once
+		Map<String, Method> methods = new LinkedHashMap<String, Method>();
+		Method[] objectMethods = Object.class.getMethods();
+		for (int i = 0; i < objectMethods.length; i++) {
+			String name = objectMethods[i].getName();
+			if ("equals".equals(name) || "hashCode".equals(name) || "toString".equals(name))
+				methods.put(name + methodDescriptor(objectMethods[i]), objectMethods[i]);
+		}
+		for (int i = 0; i < interfaces.length; i++) {
+			if (!isAccessible(interfaces[i], loader))
+				return null;
+			Method[] ms = interfaces[i].getMethods();
+			for (int j = 0; j < ms.length; j++) {
+				if (!isAccessible(ms[j], loader))
+					return null;
+				String key = ms[j].getName() + methodDescriptor(ms[j]);
+				if (!methods.containsKey(key))
+					methods.put(key, ms[j]);
+			}
+		}
+		return methods;
+	}
+
+	/**
+	 * Test, if all types used by the signature of a method are accessible by 
+	 * a generated class.
+	 *
+	 * @param method the method
+	 * @param loader the parent class loader of the generated class
+	 * @return <code>true</code>, if all types are accessible.
+	 */
+	private static boolean isAccessible(Method method, ClassLoader loader) {
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		for (int k = 0; k < parameterTypes.length; k++) {
+			if (!isAccessible(parameterTypes[k], loader))
+				return false;
+		}
+		return isAccessible(method.getReturnType(), loader);
+	}
+
+	/**
+	 * Generate a proxy class.
+	 *
+	 * @param handlerClass the invocation handler class
+	 * @param interfaces the interfaces
+	 * @param dispatchTable the dispatch table of the handler class.
+	 * @param serialized if <code>true</code>, don't call the proxy target directly.
+	 * @return the constructor or <code>null</code>, if no class can be generated.
+	 * @throws Exception
+	 */
+	private static Constructor<?> generate(Class<?> handlerClass, Class<?>[] interfaces,
+			HalfDynamicProxy.DispatchTable dispatchTable, boolean serialized) throws Exception {
+		ClassLoader parent = handlerClass.getClassLoader();
+		if (!isAccessible(handlerClass, parent))
+			return null;
+		Map<String, Method> methods = collectMethods(interfaces, parent);
+		if (methods == null)
+			return null;
+
+		String className = PACKAGE_NAME + "$HDProxy" + classCounter.incrementAndGet();
+		List<Method> genericMethods = new ArrayList<Method>();
+		byte[] classFile = writeProxyClass(className, handlerClass, interfaces, 
+				methods.values(), dispatchTable, serialized, genericMethods);
+
+		Class<?> cls = new GeneratedClassLoader(parent).define(className, classFile);
+		cls.getField(METHODS_FIELD).set(null, genericMethods.toArray(new Method[genericMethods.size()]));
+		return cls.getConstructor(new Class<?>[] { HalfDynamicProxy.class, Object.class });
+	}
+
+	/**
+	 * Create a forwarder for an interface method.
+	 * 
+	 * The forwarder is an instance of a generated class, that calls the 
+	 * method directly. It unpacks the arguments and boxes the result exactly as
+	 * required by the signature of the method. Exceptions thrown by the method 
+	 * are not wrapped. 
+	 *
+	 * @param method an interface method
+	 * @param cache where to report a failure.
+	 * @return the forwarder or <code>null</code>, if no class can be generated
+	 * for this method.
+	 */
+	static HalfDynamicProxy.Forwarder createForwarder(Method method, Cache cache) {
+		Class<?> iface = method.getDeclaringClass();
+		ClassLoader parent = HalfDynamicProxy.class.getClassLoader();
+		if (!iface.isInterface() || !isAccessible(iface, parent) || !isAccessible(method, parent))
+			return null;
+		try {
+			String className = PACKAGE_NAME + "$HDForwarder" + classCounter.incrementAndGet();
+			byte[] classFile = writeForwarderClass(className, method);
+			Class<?> cls = new GeneratedClassLoader(parent).define(className, classFile);
+			return (HalfDynamicProxy.Forwarder) cls.newInstance();
+		} catch (Exception e) {
+			cache.reportFailure("the forwarder for " + method, e);
+			return null;
+		} catch (LinkageError e) {
+			cache.reportFailure("the forwarder for " + method, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Get the internal name of a class as used in class files.
+	 *
+	 * @param cls a class
+	 * @return the internal name
+	 */
+	private static String internalName(Class<?> cls) {
+		if (cls.isArray())
+			return descriptor(cls);
+		return internalName(cls.getName());
+	}
+
+	/**
+	 * Get the internal name of a class as used in class files.
+	 *
+	 * @param className the name of the class
+	 * @return the internal name
+	 */
+	private static String internalName(String className) {
+		return className.replace('.', '/');
+	}
+
+	/**
+	 * Get the field descriptor of a class.
+	 *
+	 * @param cls the class
+	 * @return the descriptor
+	 */
+	private static String descriptor(Class<?> cls) {
+		if (cls.isArray())
+			return cls.getName().replace('.', '/');
+		if (cls == Void.TYPE)
+			return "V";
+		if (cls == Boolean.TYPE)
+			return "Z";
+		if (cls == Byte.TYPE)
+			return "B";
+		if (cls == Character.TYPE)
+			return "C";
+		if (cls == Short.TYPE)
+			return "S";
+		if (cls == Integer.TYPE)
+			return "I";
+		if (cls == Long.TYPE)
+			return "J";
+		if (cls == Float.TYPE)
+			return "F";
+		if (cls == Double.TYPE)
+			return "D";
+		return "L" + internalName(cls.getName()) + ";";
+	}
+
+	/**
+	 * Get the method descriptor.
+	 *
+	 * @param parameterTypes the parameter types
+	 * @param returnType the return type
+	 * @return the descriptor
+	 */
+	private static String methodDescriptor(Class<?>[] parameterTypes, Class<?> returnType) {
+		StringBuffer sb = new StringBuffer("(");
+		for (int i = 0; i < parameterTypes.length; i++) {
+			sb.append(descriptor(parameterTypes[i]));
+		}
+		return sb.append(')').append(descriptor(returnType)).toString();
+	}
+
+	/**
+	 * Get the method descriptor.
+	 *
+	 * @param method the method
+	 * @return the descriptor
+	 */
+	private static String methodDescriptor(Method method) {
+		return methodDescriptor(method.getParameterTypes(), method.getReturnType());
+	}
+
+	/**
+	 * Get the number of local variable slots used by a value of a given type.
+	 *
+	 * @param cls the type
+	 * @return 2 for <code>long</code> and <code>double</code>, 0 for
+	 * <code>void</code>, 1 otherwise.
+	 */
+	private static int slots(Class<?> cls) {
+		if (cls == Long.TYPE || cls == Double.TYPE)
+			return 2;
+		if (cls == Void.TYPE)
+			return 0;
+		return 1;
+	}
+
+	/**
+	 * Get the wrapper class of a primitive type.
+	 *
+	 * @param cls a primitive type
+	 * @return the wrapper class
+	 */
+	private static Class<?> wrapperClass(Class<?> cls) {
+		if (cls == Boolean.TYPE)
+			return Boolean.class;
+		if (cls == Byte.TYPE)
+			return Byte.class;
+		if (cls == Character.TYPE)
+			return Character.class;
+		if (cls == Short.TYPE)
+			return Short.class;
+		if (cls == Integer.TYPE)
+			return Integer.class;
+		if (cls == Long.TYPE)
+			return Long.class;
+		if (cls == Float.TYPE)
+			return Float.class;
+		return Double.class;
+	}
+
+	/**
+	 * Write the class file of a forwarder.
+	 *
+	 * @param className the name of the class
+	 * @param method the interface method called by the forwarder
+	 * @return the class file
+	 * @throws IOException
+	 */
+	private static byte[] writeForwarderClass(String className, Method method) throws IOException {
+		ClassWriter cw = new ClassWriter(className, 
+				new Class<?>[] { HalfDynamicProxy.Forwarder.class });
+		cw.addDefaultConstructor();
+
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		Class<?> returnType = method.getReturnType();
+		String owner = internalName(method.getDeclaringClass());
+		int argSlots = 0;
+		for (int i = 0; i < parameterTypes.length; i++) {
+			argSlots += slots(parameterTypes[i]);
+		}
+		ClassWriter.Code code = cw.addMethod(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_FINAL, "forward", 
+				"(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;", argSlots + 4, 3);
+		code.load(ClassWriter.ALOAD, 1);
+		code.op(ClassWriter.CHECKCAST, cw.classRef(owner));
+		for (int i = 0; i < parameterTypes.length; i++) {
+			Class<?> type = parameterTypes[i];
+			code.load(ClassWriter.ALOAD, 2);
+			code.op(ClassWriter.SIPUSH, i);
+			code.op(ClassWriter.AALOAD);
+			code.unbox(type);
+		}
+		code.op(ClassWriter.INVOKEINTERFACE, cw.interfaceMethodRef(owner, method.getName(), methodDescriptor(method)));
+		code.writeByte(argSlots + 1);
+		code.writeByte(0);
+		code.box(returnType);
+		code.op(ClassWriter.ARETURN);
+		return cw.toByteArray();
+	}
+
+	/**
+	 * Write the class file of a proxy class.
+	 *
+	 * @param className the name of the class
+	 * @param handlerClass the invocation handler class
+	 * @param interfaces the interfaces implemented by the proxy class
+	 * @param methods the methods to implement
+	 * @param dispatchTable the dispatch table of the invocation handler class
+	 * @param serialized if <code>true</code>, call the proxy target methods via 
+	 * {@link HalfDynamicProxy#invoke(Object, Method, Object[])}, which holds the lock of the state.
+	 * @param genericMethods gets the methods, that are called via
+	 * {@link HalfDynamicProxy#invoke(Object, Method, Object[])}.
+	 * The generated class expects this list in its static field {@link ProxyClassGenerator#METHODS_FIELD}.
+	 * @return the class file
+	 * @throws IOException
+	 */
+	private static byte[] writeProxyClass(String className, Class<?> handlerClass, Class<?>[] interfaces, 
+			Iterable<Method> methods, HalfDynamicProxy.DispatchTable dispatchTable,
+			boolean serialized, List<Method> genericMethods) throws IOException {
+		Class<?>[] allInterfaces = new Class<?>[interfaces.length + 1];
+		System.arraycopy(interfaces, 0, allInterfaces, 0, interfaces.length);
+		allInterfaces[interfaces.length] = HalfDynamicProxy.GeneratedProxy.class;
+		ClassWriter cw = new ClassWriter(className, allInterfaces);
+
+		String thisName = internalName(className);
+		String handlerName = internalName(handlerClass);
+		String handlerDescriptor = descriptor(handlerClass);
+		String hdpName = internalName(HalfDynamicProxy.class);
+		cw.addField(ClassWriter.ACC_PRIVATE | ClassWriter.ACC_FINAL, "h", handlerDescriptor);
+		cw.addField(ClassWriter.ACC_PRIVATE | ClassWriter.ACC_FINAL, "t", "Ljava/lang/Object;");
+		cw.addField(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC, METHODS_FIELD, "[Ljava/lang/reflect/Method;");
+		int handlerField = cw.fieldRef(thisName, "h", handlerDescriptor);
+		int targetField = cw.fieldRef(thisName, "t", "Ljava/lang/Object;");
+		int methodsField = cw.fieldRef(thisName, METHODS_FIELD, "[Ljava/lang/reflect/Method;");
+
+		// the constructor
+		ClassWriter.Code code = cw.addMethod(ClassWriter.ACC_PUBLIC, "<init>", 
+				"(L" + hdpName + ";Ljava/lang/Object;)V", 2, 3);
+		code.load(ClassWriter.ALOAD, 0);
+		code.op(ClassWriter.INVOKESPECIAL, cw.methodRef("java/lang/Object", "<init>", "()V"));
+		code.load(ClassWriter.ALOAD, 0);
+		code.load(ClassWriter.ALOAD, 1);
+		code.op(ClassWriter.CHECKCAST, cw.classRef(handlerName));
+		code.op(ClassWriter.PUTFIELD, handlerField);
+		code.load(ClassWriter.ALOAD, 0);
+		code.load(ClassWriter.ALOAD, 2);
+		code.op(ClassWriter.PUTFIELD, targetField);
+		code.op(ClassWriter.RETURN);
+
+		// the method of the GeneratedProxy interface
+		code = cw.addMethod(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_FINAL, "getInvocationHandlerWithTarget",
+				"()" + descriptor(InvocationHandlerWithTarget.class), 1, 1);
+		code.load(ClassWriter.ALOAD, 0);
+		code.op(ClassWriter.GETFIELD, handlerField);
+		code.op(ClassWriter.ARETURN);
+
+		// the proxy methods
+		for (Method method : methods) {
+			Class<?>[] parameterTypes = method.getParameterTypes();
+			Class<?> returnType = method.getReturnType();
+			int argSlots = 0;
+			for (int i = 0; i < parameterTypes.length; i++) {
+				argSlots += slots(parameterTypes[i]);
+			}
+			code = cw.addMethod(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_FINAL, method.getName(), 
+					methodDescriptor(method), Math.max(argSlots + 1, 8), argSlots + 1);
+			HalfDynamicProxy.Dispatch dispatch = dispatchTable.get(method);
+			Method dm = dispatch.method;
+			Class<?> dmReturnType = dm.getReturnType();
+			// pure methods use the memo of HalfDynamicProxy.invoke()
+			boolean isGeneric = dispatch.memoSlot >= 0 
+					|| (serialized && !dispatch.isOverride)
+					|| (dispatch.isOverride && dmReturnType != returnType
+					&& (dmReturnType.isPrimitive() || returnType.isPrimitive()));
+			if (isGeneric) {
+				// call HalfDynamicProxy.invoke(Object, Method, Object[])
+				code.load(ClassWriter.ALOAD, 0);
+				code.op(ClassWriter.GETFIELD, handlerField);
+				code.load(ClassWriter.ALOAD, 0);
+				code.op(ClassWriter.GETSTATIC, methodsField);
+				code.op(ClassWriter.SIPUSH, genericMethods.size());
+				code.op(ClassWriter.AALOAD);
+				genericMethods.add(method);
+				code.op(ClassWriter.SIPUSH, parameterTypes.length);
+				code.op(ClassWriter.ANEWARRAY, cw.classRef("java/lang/Object"));
+				int slot = 1;
+				for (int i = 0; i < parameterTypes.length; i++) {
+					code.op(ClassWriter.DUP);
+					code.op(ClassWriter.SIPUSH, i);
+					Class<?> type = parameterTypes[i];
+					code.load(ClassWriter.loadOpcode(type), slot);
+					slot += slots(type);
+					code.box(type);
+					code.op(ClassWriter.AASTORE);
+				}
+				code.op(ClassWriter.INVOKEVIRTUAL, cw.methodRef(handlerName, "invoke",
+						"(Ljava/lang/Object;Ljava/lang/reflect/Method;[Ljava/lang/Object;)Ljava/lang/Object;"));
+				if (returnType == Void.TYPE) {
+					code.op(ClassWriter.POP);
+				} else {
+					code.unbox(returnType);
+				}
+			} else if (dispatch.isOverride) {
+				// call the invocation handler
+				code.load(ClassWriter.ALOAD, 0);
+				code.op(ClassWriter.GETFIELD, handlerField);
+				code.loadArguments(parameterTypes);
+				code.op(ClassWriter.INVOKEVIRTUAL, cw.methodRef(handlerName, dm.getName(), methodDescriptor(dm)));
+				if (!returnType.isPrimitive() && !returnType.isAssignableFrom(dmReturnType)) {
+					code.op(ClassWriter.CHECKCAST, cw.classRef(internalName(returnType)));
+				}
+			} else {
+				// forward the call to the proxy target
+				String owner = internalName(dm.getDeclaringClass());
+				code.load(ClassWriter.ALOAD, 0);
+				code.op(ClassWriter.GETFIELD, targetField);
+				code.op(ClassWriter.CHECKCAST, cw.classRef(owner));
+				code.loadArguments(parameterTypes);
+				code.op(ClassWriter.INVOKEINTERFACE, cw.interfaceMethodRef(owner, dm.getName(), methodDescriptor(dm)));
+				code.writeByte(argSlots + 1);
+				code.writeByte(0);
+				if (dispatch.resultKind != HalfDynamicProxy.Dispatch.RESULT_NONE) {
+					// create a proxy for the result
+					code.op(ClassWriter.LDC_W, cw.classRef(internalName(returnType)));
+					code.load(ClassWriter.ALOAD, 0);
+					code.op(ClassWriter.GETFIELD, handlerField);
+					code.op(ClassWriter.INVOKESTATIC, cw.methodRef(hdpName, "getHDPProxy", "(Ljava/lang/Object;Ljava/lang/Class;L"
+							+ hdpName + ";)Ljava/lang/Object;"));
+					code.op(ClassWriter.CHECKCAST, cw.classRef(internalName(returnType)));
+				}
+			}
+			code.returnValue(returnType);
+		}
+		return cw.toByteArray();
+	}
+
+	/**
+	 * A minimal class file writer, that knows just enough about the class file
+	 * format to write proxy classes and forwarders. The generated classes
+	 * extend <code>java.lang.Object</code>.
+	 *
+	 * @author kruis
+	 */
+	private static final class ClassWriter {
+		// the opcodes we need
+		static final int ACONST_NULL = 0x01;
+		static final int ALOAD = 0x19;
+		static final int ILOAD = 0x15;
+		static final int LLOAD = 0x16;
+		static final int FLOAD = 0x17;
+		static final int DLOAD = 0x18;
+		static final int IRETURN = 0xac;
+		static final int LRETURN = 0xad;
+		static final int FRETURN = 0xae;
+		static final int DRETURN = 0xaf;
+		static final int ARETURN = 0xb0;
+		static final int RETURN = 0xb1;
+		static final int GETSTATIC = 0xb2;
+		static final int GETFIELD = 0xb4;
+		static final int PUTFIELD = 0xb5;
+		static final int INVOKEVIRTUAL = 0xb6;
+		static final int INVOKESPECIAL = 0xb7;
+		static final int INVOKESTATIC = 0xb8;
+		static final int INVOKEINTERFACE = 0xb9;
+		static final int ANEWARRAY = 0xbd;
+		static final int CHECKCAST = 0xc0;
+		static final int LDC_W = 0x13;
+		static final int SIPUSH = 0x11;
+		static final int DUP = 0x59;
+		static final int POP = 0x57;
+		static final int AASTORE = 0x53;
+		static final int AALOAD = 0x32;
+
+		// access flags
+		static final int ACC_PUBLIC = 0x0001;
+		static final int ACC_PRIVATE = 0x0002;
+		static final int ACC_STATIC = 0x0008;
+		static final int ACC_FINAL = 0x0010;
+		static final int ACC_SUPER = 0x0020;
+
+		/**
+		 * the constant pool
+		 */
+		private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+		private final DataOutputStream pool = new DataOutputStream(poolBytes);
+		private final Map<String, Integer> poolIndex = new HashMap<String, Integer>();
+		private int poolSize = 1;
+
+		private final int thisClass;
+		private final int superClass;
+		private final int[] interfaces;
+
+		/**
+		 * the fields, each entry holds access flags, name and descriptor index.
+		 */
+		private final List<int[]> fields = new ArrayList<int[]>();
+
+		/**
+		 * the methods
+		 */
+		private final List<Code> methods = new ArrayList<Code>();
+
+		/**
+		 * Create a new class writer.
+		 * 
+		 * @param className the name of the class
+		 * @param interfaces the interfaces implemented by the class
+		 * @throws IOException
+		 */
+		ClassWriter(String className, Class<?>[] interfaces) throws IOException {
+			this.thisClass = classRef(internalName(className));
+			this.superClass = classRef("java/lang/Object");
+			this.interfaces = new int[interfaces.length];
+			for (int i = 0; i < interfaces.length; i++) {
+				this.interfaces[i] = classRef(internalName(interfaces[i]));
+			}
+		}
+
+		int utf8(String s) throws IOException {
+			Integer index = poolIndex.get("U" + s);
+			if (index == null) {
+				pool.writeByte(1);
+				pool.writeUTF(s);
+				index = new Integer(poolSize++);
+				poolIndex.put("U" + s, index);
+			}
+			return index.intValue();
+		}
+
+		int classRef(String internalName) throws IOException {
+			Integer index = poolIndex.get("C" + internalName);
+			if (index == null) {
+				int name = utf8(internalName);
+				pool.writeByte(7);
+				pool.writeShort(name);
+				index = new Integer(poolSize++);
+				poolIndex.put("C" + internalName, index);
+			}
+			return index.intValue();
+		}
+
+		private int memberRef(int tag, String owner, String name, String descriptor) throws IOException {
+			String key = "M" + tag + owner + "." + name + descriptor;
+			Integer index = poolIndex.get(key);
+			if (index == null) {
+				int ownerIndex = classRef(owner);
+				int nameIndex = utf8(name);
+				int descriptorIndex = utf8(descriptor);
+				pool.writeByte(12); // NameAndType
+				pool.writeShort(nameIndex);
+				pool.writeShort(descriptorIndex);
+				int nameAndType = poolSize++;
+				pool.writeByte(tag);
+				pool.writeShort(ownerIndex);
+				pool.writeShort(nameAndType);
+				index = new Integer(poolSize++);
+				poolIndex.put(key, index);
+			}
+			return index.intValue();
+		}
+
+		int fieldRef(String owner, String name, String descriptor) throws IOException {
+			return memberRef(9, owner, name, descriptor);
+		}
+
+		int methodRef(String owner, String name, String descriptor) throws IOException {
+			return memberRef(10, owner, name, descriptor);
+		}
+
+		int interfaceMethodRef(String owner, String name, String descriptor) throws IOException {
+			return memberRef(11, owner, name, descriptor);
+		}
+
+		/**
+		 * Add a field.
+		 * 
+		 * @param access the access flags
+		 * @param name the name of the field
+		 * @param descriptor the field descriptor
+		 * @throws IOException
+		 */
+		void addField(int access, String name, String descriptor) throws IOException {
+			fields.add(new int[] { access, utf8(name), utf8(descriptor) });
+		}
+
+		/**
+		 * Add a method.
+		 * 
+		 * @param access the access flags
+		 * @param name the name of the method
+		 * @param descriptor the method descriptor
+		 * @param maxStack the maximum depth of the operand stack
+		 * @param maxLocals the number of local variables
+		 * @return the code object used to write the byte code of the method
+		 * @throws IOException
+		 */
+		Code addMethod(int access, String name, String descriptor, int maxStack, int maxLocals) throws IOException {
+			Code code = new Code(access, utf8(name), utf8(descriptor), maxStack, maxLocals);
+			methods.add(code);
+			return code;
+		}
+
+		/**
+		 * Add a public constructor without arguments.
+		 * 
+		 * @throws IOException
+		 */
+		void addDefaultConstructor() throws IOException {
+			Code code = addMethod(ACC_PUBLIC, "<init>", "()V", 1, 1);
+			code.load(ALOAD, 0);
+			code.op(INVOKESPECIAL, methodRef("java/lang/Object", "<init>", "()V"));
+			code.op(RETURN);
+		}
+
+		/**
+		 * Holds the code of a single method.
+		 */
+		final class Code {
+			private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			private final DataOutputStream out = new DataOutputStream(bytes);
+			private final int access;
+			private final int name;
+			private final int descriptor;
+			private final int maxStack;
+			private final int maxLocals;
+
+			Code(int access, int name, int descriptor, int maxStack, int maxLocals) {
+				this.access = access;
+				this.name = name;
+				this.descriptor = descriptor;
+				this.maxStack = maxStack;
+				this.maxLocals = maxLocals;
+			}
+
+			void writeByte(int b) throws IOException {
+				out.writeByte(b);
+			}
+
+			void op(int opcode) throws IOException {
+				out.writeByte(opcode);
+			}
+
+			void op(int opcode, int index) throws IOException {
+				out.writeByte(opcode);
+				out.writeShort(index);
+			}
+
+			void load(int opcode, int slot) throws IOException {
+				out.writeByte(opcode);
+				out.writeByte(slot);
+			}
+
+			/**
+			 * Load the method arguments onto the operand stack.
+			 *
+			 * @param parameterTypes the parameter types
+			 */
+			void loadArguments(Class<?>[] parameterTypes) throws IOException {
+				int slot = 1;
+				for (int i = 0; i < parameterTypes.length; i++) {
+					load(loadOpcode(parameterTypes[i]), slot);
+					slot += slots(parameterTypes[i]);
+				}
+			}
+
+			/**
+			 * Convert the value on top of the operand stack to an object.
+			 * 
+			 * @param type the type of the value
+			 */
+			void box(Class<?> type) throws IOException {
+				if (type == Void.TYPE) {
+					op(ACONST_NULL);
+				} else if (type.isPrimitive()) {
+					Class<?> wrapper = wrapperClass(type);
+					op(INVOKESTATIC, methodRef(internalName(wrapper), "valueOf",
+							methodDescriptor(new Class<?>[] { type }, wrapper)));
+				}
+			}
+
+			/**
+			 * Convert the object on top of the operand stack to a value 
+			 * of the given type.
+			 * 
+			 * @param type the type of the value
+			 */
+			void unbox(Class<?> type) throws IOException {
+				if (type.isPrimitive()) {
+					Class<?> wrapper = wrapperClass(type);
+					op(CHECKCAST, classRef(internalName(wrapper)));
+					op(INVOKEVIRTUAL, methodRef(internalName(wrapper), type.getName() + "Value",
+							"()" + descriptor(type)));
+				} else if (type != Object.class) {
+					op(CHECKCAST, classRef(internalName(type)));
+				}
+			}
+
+			/**
+			 * Return a value of the given type.
+			 *
+			 * @param type the return type
+			 */
+			void returnValue(Class<?> type) throws IOException {
+				if (type == Void.TYPE)
+					op(RETURN);
+				else if (type == Long.TYPE)
+					op(LRETURN);
+				else if (type == Float.TYPE)
+					op(FRETURN);
+				else if (type == Double.TYPE)
+					op(DRETURN);
+				else if (type.isPrimitive())
+					op(IRETURN);
+				else
+					op(ARETURN);
+			}
+		}
+
+		static int loadOpcode(Class<?> type) {
+			if (type == Long.TYPE)
+				return LLOAD;
+			if (type == Float.TYPE)
+				return FLOAD;
+			if (type == Double.TYPE)
+				return DLOAD;
+			if (type.isPrimitive())
+				return ILOAD;
+			return ALOAD;
+		}
+
+		/**
+		 * Get the class file.
+		 *
+		 * @return the class file
+		 * @throws IOException
+		 */
+		byte[] toByteArray() throws IOException {
+			int codeAttribute = utf8("Code");
+			pool.flush();
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0); // minor version
+			out.writeShort(49); // major version: java 1.5
+			out.writeShort(poolSize);
+			poolBytes.writeTo(out);
+			out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(interfaces.length);
+			for (int i = 0; i < interfaces.length; i++) {
+				out.writeShort(interfaces[i]);
+			}
+			out.writeShort(fields.size());
+			for (int i = 0; i < fields.size(); i++) {
+				int[] field = fields.get(i);
+				out.writeShort(field[0]);
+				out.writeShort(field[1]);
+				out.writeShort(field[2]);
+				out.writeShort(0); // attributes count
+			}
+			out.writeShort(methods.size());
+			for (int i = 0; i < methods.size(); i++) {
+				Code c = methods.get(i);
+				c.out.flush();
+				out.writeShort(c.access);
+				out.writeShort(c.name);
+				out.writeShort(c.descriptor);
+				out.writeShort(1); // attributes count
+				out.writeShort(codeAttribute);
+				out.writeInt(12 + c.bytes.size());
+				out.writeShort(c.maxStack);
+				out.writeShort(c.maxLocals);
+				out.writeInt(c.bytes.size());
+				c.bytes.writeTo(out);
+				out.writeShort(0); // exception table length
+				out.writeShort(0); // attributes count
+			}
+			out.writeShort(0); // class attributes count
+			out.flush();
+			return bytes.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ *  PublishedApiDoclet - a filter proxy for any javadoc doclet
+ *
+ *  Copyright (C) 2010  Anselm Kruis <a.kruis@science-computing.de>
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package de.kruis.padoclet.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A concurrent cache with weak keys, that compares keys by identity.
+ *
+ * <p>
+ * This class is similar to a {@link java.util.WeakHashMap}, but it uses
+ * {@link System#identityHashCode(Object)} and <code>==</code> instead of
+ * the <code>hashCode</code> and <code>equals</code> methods of the keys.
+ * It is based on a {@link ConcurrentHashMap}, therefore reads don't block
+ * and no external synchronization is required.
+ * </p>
+ * <p>
+ * An entry gets removed, after its key has been garbage collected. As with
+ * a WeakHashMap, a value, that strongly refers to its key, keeps the entry
+ * alive until the cache itself becomes unreachable.
+ * </p>
+ *
+ * @author kruis
+ * @param <V> the type of the values
+ */
+final class WeakIdentityCache<V> implements IdentityCache<V> {
+
+	/**
+	 * The key of a map entry.
+	 */
+	private static final class WeakKey extends WeakReference<Object> {
+		private final int hash;
+
+		WeakKey(Object referent, ReferenceQueue<Object> queue) {
+			super(referent, queue);
+			this.hash = System.identityHashCode(referent);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			Object referent = get();
+			if (referent == null)
+				return false;
+			if (obj instanceof WeakKey)
+				return referent == ((WeakKey) obj).get();
+			if (obj instanceof LookupKey)
+				return referent == ((LookupKey) obj).referent;
+			return false;
+		}
+	}
+
+	/**
+	 * A short living key used to look up an entry.
+	 */
+	private static final class LookupKey {
+		private final Object referent;
+		private final int hash;
+
+		LookupKey(Object referent) {
+			this.referent = referent;
+			this.hash = System.identityHashCode(referent);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object obj) {
+			if (obj instanceof WeakKey)
+				return referent == ((WeakKey) obj).get();
+			if (obj instanceof LookupKey)
+				return referent == ((LookupKey) obj).referent;
+			return false;
+		}
+	}
+
+	/**
+	 * holds the entries
+	 */
+	private final ConcurrentHashMap<Object, V> map = new ConcurrentHashMap<Object, V>();
+
+	/**
+	 * gets the keys, that have been garbage collected
+	 */
+	private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+	/**
+	 * Get the value for a key.
+	 *
+	 * @param key the key
+	 * @return the value or <code>null</code>, if the cache contains no
+	 * value for <code>key</code>.
+	 */
+	public V get(Object key) {
+		return map.get(new LookupKey(key));
+	}
+
+	/**
+	 * Add a value, unless the cache already contains a value for the key.
+	 *
+	 * @param key the key. Must not be <code>null</code>.
+	 * @param value the value. Must not be <code>null</code>.
+	 * @return the value already contained in the cache or <code>null</code>,
+	 * if <code>value</code> has been added.
+	 */
+	public V putIfAbsent(Object key, V value) {
+		expungeStaleEntries();
+		return map.putIfAbsent(new WeakKey(key, queue), value);
+	}
+
+	/**
+	 * Remove all entries.
+	 */
+	public void clear() {
+		map.clear();
+		expungeStaleEntries();
+	}
+
+	/**
+	 * Remove the entries of garbage collected keys.
+	 */
+	private void expungeStaleEntries() {
+		Reference<? extends Object> ref;
+		while ((ref = queue.poll()) != null) {
+			map.remove(ref);
+		}
+	}
+}